@@ -17,6 +17,7 @@ import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @Configuration
 @Profile({"default", "test"})
@@ -43,6 +44,9 @@ public class BeanConfiguration {
   @Value("${spring.redis.host}")
   private String host;
 
+  @Value("${taskScheduler.poolSize}")
+  private int taskSchedulerPoolSize;
+
   @Bean
   JedisConnectionFactory jedisConnectionFactory() {
     JedisConnectionFactory jedisConnectionFactory = new JedisConnectionFactory();
@@ -56,6 +60,14 @@ public class BeanConfiguration {
     return new StringRedisTemplate(jedisConnectionFactory);
   }
 
+  @Bean
+  ThreadPoolTaskScheduler taskScheduler() {
+    ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+    taskScheduler.setPoolSize(taskSchedulerPoolSize);
+    taskScheduler.setThreadNamePrefix("idh-task-");
+    return taskScheduler;
+  }
+
   @Bean
   LdapContextSource contextSource() {
     LdapContextSource ldapContextSource = new LdapContextSource();
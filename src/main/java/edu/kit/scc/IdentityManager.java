@@ -11,7 +11,9 @@ package edu.kit.scc;
 
 import edu.kit.scc.ldap.LdapClient;
 import edu.kit.scc.ldap.PosixUser;
+import edu.kit.scc.redis.NumberRangeExhaustedException;
 import edu.kit.scc.redis.RedisClient;
+import edu.kit.scc.redis.UserState;
 import edu.kit.scc.scim.ScimUser;
 import edu.kit.scc.scim.ScimUser.Email;
 import edu.kit.scc.scim.ScimUser.Meta;
@@ -26,6 +28,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -128,7 +131,13 @@ public class IdentityManager {
     }
 
     String id = redisClient.createUser(userBase + ":" + uid);
-    String uidNumber = redisClient.getUidNumber(id);
+    String uidNumber;
+    try {
+      uidNumber = redisClient.getUidNumber(id);
+    } catch (NumberRangeExhaustedException e) {
+      log.error("ERROR {}", e.getMessage());
+      return null;
+    }
 
     PosixUser posixUser = new PosixUser();
     posixUser.setUidNumber(uidNumber);
@@ -215,22 +224,25 @@ public class IdentityManager {
       linkedUsers = new ArrayList<>();
       linkedUsers.add(scimUserFromPosixUser(primaryPosixUser));
 
-      // store uid number and home directory for unlinking
-      redisClient.setUidNumber(primaryPosixUser.getUniqueIdentifier(),
-          primaryPosixUser.getUidNumber());
-      redisClient.setUserHome(primaryPosixUser.getUniqueIdentifier(),
-          primaryPosixUser.getHomeDirectory());
+      // store uid numbers and home directories for unlinking, in one batch
+      Map<String, UserState> states = new LinkedHashMap<>();
+      states.put(primaryPosixUser.getUniqueIdentifier(), new UserState(
+          primaryPosixUser.getUidNumber(), primaryPosixUser.getHomeDirectory()));
 
+      List<PosixUser> posixUsers = new ArrayList<>();
       for (ScimUser user : scimUsers) {
         log.debug("LDAP lookup for user {}", user.getUserName());
         PosixUser posixUser = ldapClient.getPosixUser(user.getUserName());
         log.debug("User {}", posixUser.toString());
 
-        linkedUsers.add(scimUserFromPosixUser(posixUser));
+        posixUsers.add(posixUser);
+        states.put(posixUser.getUniqueIdentifier(),
+            new UserState(posixUser.getUidNumber(), posixUser.getHomeDirectory()));
+      }
+      redisClient.setUserStates(states);
 
-        // store uid number and home directory for unlinking
-        redisClient.setUidNumber(posixUser.getUniqueIdentifier(), posixUser.getUidNumber());
-        redisClient.setUserHome(posixUser.getUniqueIdentifier(), posixUser.getHomeDirectory());
+      for (PosixUser posixUser : posixUsers) {
+        linkedUsers.add(scimUserFromPosixUser(posixUser));
 
         posixUser.setUidNumber(primaryPosixUser.getUidNumber());
         posixUser.setHomeDirectory(primaryPosixUser.getHomeDirectory());
@@ -258,15 +270,32 @@ public class IdentityManager {
   public List<ScimUser> unlinkUsers(List<ScimUser> scimUsers) {
     ArrayList<ScimUser> unlinkedUsers = new ArrayList<>();
 
+    List<PosixUser> posixUsers = new ArrayList<>();
+    List<String> ids = new ArrayList<>();
     for (ScimUser user : scimUsers) {
       PosixUser posixUser = ldapClient.getPosixUser(user.getUserName());
       log.debug("Posix user {}", posixUser.toString());
 
-      // restore uidNumber and homDirectory from redis
-      String uidNumber = redisClient.getUidNumber(posixUser.getUniqueIdentifier());
-      String homeDirectory = redisClient.getUserHome(posixUser.getUniqueIdentifier());
+      posixUsers.add(posixUser);
+      ids.add(posixUser.getUniqueIdentifier());
+    }
+
+    // restore uidNumber and homDirectory from redis, in one batch
+    Map<String, UserState> states = redisClient.getUserStates(ids);
+
+    for (PosixUser posixUser : posixUsers) {
+      UserState state = states.get(posixUser.getUniqueIdentifier());
+      String uidNumber = state.getUidNumber();
+      if (uidNumber == null) {
+        try {
+          uidNumber = redisClient.getUidNumber(posixUser.getUniqueIdentifier());
+        } catch (NumberRangeExhaustedException e) {
+          log.error("ERROR {}", e.getMessage());
+          continue;
+        }
+      }
 
-      posixUser.setHomeDirectory(homeDirectory);
+      posixUser.setHomeDirectory(state.getHomeDirectory());
       posixUser.setUidNumber(uidNumber);
 
       PosixUser updatedUser = ldapClient.updatePosixUser(posixUser);
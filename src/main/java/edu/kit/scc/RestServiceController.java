@@ -9,11 +9,15 @@
 
 package edu.kit.scc;
 
-import edu.kit.scc.http.HttpClient;
-import edu.kit.scc.http.HttpResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.kit.scc.auth.ServiceTokenIssuer;
+import edu.kit.scc.auth.TokenPrincipal;
+import edu.kit.scc.oidc.OidcClient;
+import edu.kit.scc.scim.ScimClient;
+import edu.kit.scc.scim.ScimMirror;
 import edu.kit.scc.scim.ScimUser;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +26,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -30,6 +36,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -38,14 +45,7 @@ public class RestServiceController {
 
   private static Logger log = LoggerFactory.getLogger(RestServiceController.class);
 
-  @Value("${oidc.token}")
-  private String oidcTokenEndpoint;
-
-  @Value("${oidc.clientid}")
-  private String oidcClientId;
-
-  @Value("${oidc.clientsecret}")
-  private String oidcClientSecret;
+  private static final String SCIM_READ = "scim:read";
 
   @Value("${scim.users}")
   private String scimUsersEndpoint;
@@ -57,49 +57,109 @@ public class RestServiceController {
   private IdentityManager identityHarmonizer;
 
   @Autowired
-  private HttpClient httpClient;
+  private ServiceTokenIssuer serviceTokenIssuer;
+
+  @Autowired
+  private OidcClient oidcClient;
+
+  @Autowired
+  private ScimClient scimClient;
+
+  @Autowired
+  private ScimMirror scimMirror;
 
   /**
-   * IAM SCIM get user endpoint.
+   * Service token endpoint. Exchanges the client's validated IAM access token for a short-lived
+   * IdH service token, which IdH validates without contacting IAM. The service token expires no
+   * later than the IAM access token. Disabled unless idh.serviceToken.secret is configured.
    * 
-   * @return the {@link ScimUser}
+   * @return the service token response
    */
-  @Secured({"ROLE_ADMIN", "ROLE_USER"})
-  @RequestMapping(path = "IAM/Users/{name}", method = RequestMethod.GET,
-      produces = "application/json")
-  public ResponseEntity<?> getIamScimUser(@PathVariable String name) {
-
-    // get access token
-    String body = "grant_type=client_credentials&client_id=" + oidcClientId + "&client_secret="
-        + oidcClientSecret + "&scope=scim:read";
-
-    HttpResponse response = httpClient.makeHttpsPostRequest(body, oidcTokenEndpoint);
-    JSONObject json = new JSONObject(response.getResponse());
+  @Secured("ROLE_CLIENT")
+  @RequestMapping(path = "/token", method = RequestMethod.POST, produces = "application/json")
+  public ResponseEntity<?> issueServiceToken() {
+    if (!serviceTokenIssuer.isEnabled()) {
+      return new ResponseEntity<String>("Service tokens disabled", HttpStatus.NOT_FOUND);
+    }
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 
-    String accessToken = json.getString("access_token");
-    log.debug("Access token {}", accessToken);
+    // service tokens can not be renewed without IAM
+    Object credentials = authentication.getCredentials();
+    if (!(credentials instanceof String)
+        || serviceTokenIssuer.isServiceToken((String) credentials)) {
+      return new ResponseEntity<String>("IAM access token required", HttpStatus.FORBIDDEN);
+    }
 
-    // get SCIM user
-    HttpResponse scimResponse =
-        httpClient.makeHttpsGetRequest(accessToken, null, scimUsersEndpoint);
+    long presentedExpiresAt = 0;
+    if (authentication.getDetails() instanceof TokenPrincipal) {
+      presentedExpiresAt = ((TokenPrincipal) authentication.getDetails()).getExpiresAt();
+    }
+    long expiresAt = serviceTokenIssuer.getExpiresAt(presentedExpiresAt);
+    long expiresIn = (expiresAt - System.currentTimeMillis()) / 1000;
+    if (expiresIn <= 0) {
+      return new ResponseEntity<String>("IAM access token expired", HttpStatus.FORBIDDEN);
+    }
 
-    JSONObject scimUsers = new JSONObject(scimResponse.getResponse());
-    JSONArray scimResources = scimUsers.getJSONArray("Resources");
+    String serviceToken = serviceTokenIssuer.issue(authentication.getName(), expiresAt);
+    if (serviceToken == null) {
+      return new ResponseEntity<String>("Could not issue token", HttpStatus.INTERNAL_SERVER_ERROR);
+    }
 
-    JSONObject returnObj = new JSONObject();
+    JSONObject json = new JSONObject();
+    json.put("access_token", serviceToken);
+    json.put("token_type", "Bearer");
+    json.put("expires_in", expiresIn);
+    return new ResponseEntity<>(json.toString(), HttpStatus.OK);
+  }
 
-    for (int i = 0; i < scimResources.length(); i++) {
-      JSONObject obj = scimResources.getJSONObject(i);
+  /**
+   * IAM SCIM get user endpoint. Users in the local replica are answered from memory, display
+   * names shared by several mirrored users are a conflict. The IAM calls run asynchronously, the
+   * request thread is released while waiting for IAM.
+   * 
+   * @return the {@link ScimUser}
+   */
+  @Secured({"ROLE_ADMIN", "ROLE_USER"})
+  @RequestMapping(path = "IAM/Users/{name}", method = RequestMethod.GET,
+      produces = "application/json")
+  public CompletableFuture<ResponseEntity<?>> getIamScimUser(@PathVariable String name) {
+
+    // users created since the last sync are not mirrored yet, so only hits are final
+    List<JsonNode> mirroredUsers = scimMirror.getUsersByDisplayName(name);
+    if (mirroredUsers.size() > 1) {
+      JSONObject returnObj = new JSONObject();
+      returnObj.put("error", "not unique");
+      return CompletableFuture.completedFuture(
+          new ResponseEntity<>(returnObj.toString(), HttpStatus.CONFLICT));
+    }
+    if (mirroredUsers.size() == 1) {
+      return CompletableFuture.completedFuture(
+          new ResponseEntity<>(mirroredUsers.get(0).toString(), HttpStatus.OK));
+    }
 
-      if (obj.getString("displayName").equals(name)) {
-        returnObj = obj;
-        break;
-      } else {
-        returnObj.put("error", "not found");
+    // cached IAM access token
+    return oidcClient.getAccessToken(SCIM_READ).thenCompose(accessToken -> {
+      if (accessToken == null) {
+        return CompletableFuture.<ResponseEntity<?>>completedFuture(
+            new ResponseEntity<String>("Could not get IAM access token", HttpStatus.BAD_GATEWAY));
       }
-    }
 
-    return new ResponseEntity<>(returnObj.toString(), HttpStatus.OK);
+      // filtered lookup, falls back to searching the pages of all users
+      return scimClient.findResource(accessToken, scimUsersEndpoint, "displayName", name)
+          .<ResponseEntity<?>>handle((scimUser, ex) -> {
+            if (ex != null) {
+              log.error("ERROR {}", ex.getMessage());
+              return new ResponseEntity<String>("IAM SCIM request failed",
+                  HttpStatus.BAD_GATEWAY);
+            }
+            if (scimUser != null) {
+              return new ResponseEntity<>(scimUser.toString(), HttpStatus.OK);
+            }
+            JSONObject returnObj = new JSONObject();
+            returnObj.put("error", "not found");
+            return new ResponseEntity<>(returnObj.toString(), HttpStatus.NOT_FOUND);
+          });
+    });
   }
 
   /**
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Authenticates requests by the one {@link Authenticator} matching the request's client
+ * certificate or authorization scheme. Each authenticator's outcomes and latencies are exposed as
+ * auth.&lt;scheme&gt;.* metrics.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class AuthenticationChainFilter extends OncePerRequestFilter implements PublicMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(AuthenticationChainFilter.class);
+
+  public static final String X509 = "x509";
+
+  public static final String BASIC = "basic";
+
+  public static final String BEARER_JWT = "bearer.jwt";
+
+  public static final String BEARER_OPAQUE = "bearer.opaque";
+
+  private static final String CERTIFICATE_ATTRIBUTE = "javax.servlet.request.X509Certificate";
+
+  @Autowired
+  BasicAuthenticator basicAuthenticator;
+
+  @Autowired
+  BearerTokenAuthenticator bearerTokenAuthenticator;
+
+  @Autowired
+  ClientCertificateAuthenticator clientCertificateAuthenticator;
+
+  private final Map<String, Authenticator> authenticators = new HashMap<>();
+
+  private final Map<String, AuthenticatorMetrics> authenticatorMetrics = new LinkedHashMap<>();
+
+  /**
+   * Registers the authenticators by scheme.
+   */
+  @PostConstruct
+  public void init() {
+    if (clientCertificateAuthenticator.isEnabled()) {
+      register(X509, clientCertificateAuthenticator);
+    }
+    register(BASIC, basicAuthenticator);
+    register(BEARER_JWT, bearerTokenAuthenticator);
+    register(BEARER_OPAQUE, bearerTokenAuthenticator);
+  }
+
+  /**
+   * Gets the scheme of the authorization header. Bearer tokens are told apart by their shape,
+   * JWTs have dot separated parts.
+   * 
+   * @param authorizationHeader the authorization header
+   * @return the lower case scheme or null if the header is missing or malformed
+   */
+  public static String getScheme(String authorizationHeader) {
+    if (authorizationHeader == null) {
+      return null;
+    }
+    int space = authorizationHeader.indexOf(' ');
+    if (space <= 0) {
+      return null;
+    }
+    String scheme = authorizationHeader.substring(0, space).toLowerCase(Locale.ROOT);
+    if (scheme.equals("bearer")) {
+      return authorizationHeader.indexOf('.', space) > 0 ? BEARER_JWT : BEARER_OPAQUE;
+    }
+    return scheme;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    log.debug("Request from {}", request.getRemoteAddr());
+
+    Authentication authentication = null;
+    if (request.getAttribute(CERTIFICATE_ATTRIBUTE) != null) {
+      authentication = authenticate(X509, request);
+    }
+    if (authentication == null) {
+      String scheme = getScheme(request.getHeader("Authorization"));
+      if (scheme != null) {
+        authentication = authenticate(scheme, request);
+      }
+    }
+    if (authentication != null) {
+      SecurityContextHolder.getContext().setAuthentication(authentication);
+    }
+
+    filterChain.doFilter(request, response);
+  }
+
+  public AuthenticatorMetrics getMetrics(String scheme) {
+    return authenticatorMetrics.get(scheme);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    for (AuthenticatorMetrics schemeMetrics : authenticatorMetrics.values()) {
+      metrics.addAll(schemeMetrics.metrics());
+    }
+    return metrics;
+  }
+
+  private void register(String scheme, Authenticator authenticator) {
+    authenticators.put(scheme, authenticator);
+    authenticatorMetrics.put(scheme, new AuthenticatorMetrics("auth." + scheme));
+  }
+
+  private Authentication authenticate(String scheme, HttpServletRequest request) {
+    Authenticator authenticator = authenticators.get(scheme);
+    if (authenticator == null) {
+      log.debug("Unsupported authentication scheme {}", scheme);
+      return null;
+    }
+    AuthenticatorMetrics metrics = authenticatorMetrics.get(scheme);
+    long start = System.nanoTime();
+    try {
+      Authentication authentication = authenticator.authenticate(request);
+      if (authentication != null) {
+        metrics.success(System.nanoTime() - start);
+      } else {
+        metrics.failure(System.nanoTime() - start);
+      }
+      return authentication;
+    } catch (RuntimeException ex) {
+      metrics.error(System.nanoTime() - start);
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+}
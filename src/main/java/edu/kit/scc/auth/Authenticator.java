@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import org.springframework.security.core.Authentication;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Authenticates requests by one authentication scheme.
+ * 
+ * @author benjamin
+ *
+ */
+public interface Authenticator {
+
+  /**
+   * Authenticates the request.
+   * 
+   * @param request the {@link HttpServletRequest}
+   * @return the {@link Authentication} or null if the request carries no valid credentials for
+   *         this scheme
+   */
+  Authentication authenticate(HttpServletRequest request);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Outcome counters and latency histogram of one {@link Authenticator}.
+ * 
+ * @author benjamin
+ *
+ */
+public class AuthenticatorMetrics {
+
+  // upper bounds of the latency buckets in milliseconds
+  private static final long[] BUCKETS = {1, 5, 10, 50, 100, 500, 1000};
+
+  private final String prefix;
+
+  private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS.length + 1);
+
+  private final AtomicLong latencySum = new AtomicLong();
+
+  private final AtomicLong successes = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private final AtomicLong errors = new AtomicLong();
+
+  public AuthenticatorMetrics(String prefix) {
+    this.prefix = prefix;
+  }
+
+  public void success(long nanos) {
+    successes.incrementAndGet();
+    record(nanos);
+  }
+
+  public void failure(long nanos) {
+    failures.incrementAndGet();
+    record(nanos);
+  }
+
+  public void error(long nanos) {
+    errors.incrementAndGet();
+    record(nanos);
+  }
+
+  public long getSuccesses() {
+    return successes.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * Gets the counters and the cumulative latency histogram.
+   * 
+   * @return a list of {@link Metric}
+   */
+  public List<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Long>(prefix + ".success", successes.get()));
+    metrics.add(new Metric<Long>(prefix + ".failure", failures.get()));
+    metrics.add(new Metric<Long>(prefix + ".error", errors.get()));
+
+    long count = 0;
+    for (int i = 0; i < BUCKETS.length; i++) {
+      count += latencies.get(i);
+      metrics.add(new Metric<Long>(prefix + ".latency.lt" + BUCKETS[i] + "ms", count));
+    }
+    count += latencies.get(BUCKETS.length);
+    metrics.add(new Metric<Long>(prefix + ".latency.count", count));
+    metrics.add(new Metric<Double>(prefix + ".latency.mean",
+        count == 0 ? 0.0 : latencySum.get() / 1e6 / count));
+    return metrics;
+  }
+
+  private void record(long nanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+      bucket++;
+    }
+    latencies.incrementAndGet(bucket);
+    latencySum.addAndGet(nanos);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Authenticates HTTP basic credentials with the configured {@link AuthenticationManager}, which
+ * loads the user from the {@link CustomUserDetailsService}.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class BasicAuthenticator implements Authenticator {
+
+  private static final Logger log = LoggerFactory.getLogger(BasicAuthenticator.class);
+
+  private static final String BASIC = "Basic ";
+
+  // the manager is built by WebSecurityConfiguration, which depends on the authenticators
+  @Autowired
+  @Lazy
+  AuthenticationManager authenticationManager;
+
+  @Override
+  public Authentication authenticate(HttpServletRequest request) {
+    return authenticate(request.getHeader("Authorization"));
+  }
+
+  /**
+   * Authenticates the basic credentials of the authorization header.
+   * 
+   * @param authorizationHeader the authorization header
+   * @return the {@link Authentication} or null if the header carries no valid basic credentials
+   */
+  public Authentication authenticate(String authorizationHeader) {
+    if (authorizationHeader == null
+        || !authorizationHeader.regionMatches(true, 0, BASIC, 0, BASIC.length())) {
+      return null;
+    }
+    String credentials = new String(
+        Base64.decodeBase64(authorizationHeader.substring(BASIC.length()).trim()),
+        StandardCharsets.UTF_8);
+    int colon = credentials.indexOf(':');
+    if (colon < 0) {
+      log.debug("Invalid basic credentials");
+      return null;
+    }
+    String username = credentials.substring(0, colon);
+    String password = credentials.substring(colon + 1);
+    try {
+      // password encoding and account status checks of the configured providers
+      return authenticationManager
+          .authenticate(new UsernamePasswordAuthenticationToken(username, password));
+    } catch (AuthenticationException ex) {
+      log.debug("Basic authentication of {} failed: {}", username, ex.getMessage());
+    }
+    return null;
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.http.HttpResponse;
+import edu.kit.scc.oidc.JwtValidator;
+import edu.kit.scc.oidc.OidcDiscovery;
+import edu.kit.scc.oidc.OidcIssuer;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.stereotype.Component;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Authenticates OAuth2 bearer tokens, i.e. IdH service tokens, JWTs of the trusted OIDC issuers
+ * and opaque tokens introspected at the issuers.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class BearerTokenAuthenticator implements Authenticator {
+
+  private static final Logger log = LoggerFactory.getLogger(BearerTokenAuthenticator.class);
+
+  private static final String BEARER = "Bearer ";
+
+  private static final int MAX_HEADER_LENGTH = 8192;
+
+  // introspection result of expired or revoked tokens
+  private static final TokenPrincipal INACTIVE = new TokenPrincipal(null, null, 0);
+
+  @Value("${oidc.localValidation}")
+  private boolean localValidation;
+
+  @Value("${oidc.validationTimeout}")
+  private long validationTimeout;
+
+  @Autowired
+  HttpClient httpClient;
+
+  @Autowired
+  JwtValidator jwtValidator;
+
+  @Autowired
+  OidcDiscovery discovery;
+
+  @Autowired
+  TokenCache tokenCache;
+
+  @Autowired
+  ServiceTokenIssuer serviceTokenIssuer;
+
+  private final ConcurrentMap<String, CompletableFuture<TokenPrincipal>> inFlight =
+      new ConcurrentHashMap<>();
+
+  @Override
+  public Authentication authenticate(HttpServletRequest request) {
+    return authenticate(request.getHeader("Authorization"));
+  }
+
+  /**
+   * Authenticates the bearer token of the authorization header.
+   * 
+   * @param authorizationHeader the authorization header
+   * @return the {@link Authentication} or null if the header carries no valid bearer token
+   */
+  public Authentication authenticate(String authorizationHeader) {
+    String token = getBearerToken(authorizationHeader);
+    if (token == null) {
+      return null;
+    }
+    try {
+      TokenPrincipal tokenPrincipal = resolveToken(token);
+      if (tokenPrincipal != null) {
+        UsernamePasswordAuthenticationToken authentication =
+            new UsernamePasswordAuthenticationToken(tokenPrincipal.getPrincipal(), token,
+                AuthorityUtils.commaSeparatedStringToAuthorityList(tokenPrincipal.getRole()));
+        // keeps the token's expiration
+        authentication.setDetails(tokenPrincipal);
+        return authentication;
+      }
+    } catch (Exception ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Extracts the bearer token from the authorization header.
+   * 
+   * @param authorizationHeader the authorization header
+   * @return the bearer token or null if the header carries no well-formed bearer token
+   */
+  public static String getBearerToken(String authorizationHeader) {
+    if (authorizationHeader == null || authorizationHeader.length() <= BEARER.length()
+        || authorizationHeader.length() > MAX_HEADER_LENGTH
+        || !authorizationHeader.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+      return null;
+    }
+    // RFC 6750 b64token characters only
+    for (int i = BEARER.length(); i < authorizationHeader.length(); i++) {
+      char ch = authorizationHeader.charAt(i);
+      if (!(ch >= 'A' && ch <= 'Z' || ch >= 'a' && ch <= 'z' || ch >= '0' && ch <= '9'
+          || ch == '-' || ch == '.' || ch == '_' || ch == '~' || ch == '+' || ch == '/'
+          || ch == '=')) {
+        return null;
+      }
+    }
+    return authorizationHeader.substring(BEARER.length());
+  }
+
+  /**
+   * Resolves a bearer token from the token cache or validates it. Concurrent validations of the
+   * same token are coalesced into one, the other callers wait up to oidc.validationTimeout
+   * seconds for its result.
+   * 
+   * @param token the bearer token
+   * @return the {@link TokenPrincipal} or null if the token is invalid
+   */
+  public TokenPrincipal resolveToken(String token) {
+    String digest = TokenCache.digest(token);
+    if (tokenCache.isRejected(digest)) {
+      log.debug("Token rejected before");
+      return null;
+    }
+    TokenPrincipal tokenPrincipal = tokenCache.get(digest);
+    if (tokenPrincipal != null) {
+      log.debug("Token cache hit {}", tokenPrincipal);
+      return tokenPrincipal;
+    }
+
+    // only one validation per token in flight, concurrent callers wait for its result
+    CompletableFuture<TokenPrincipal> validation = new CompletableFuture<>();
+    CompletableFuture<TokenPrincipal> pending = inFlight.putIfAbsent(digest, validation);
+    if (pending != null) {
+      log.debug("Wait for pending token validation");
+      try {
+        return pending.get(validationTimeout, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException | TimeoutException ex) {
+        log.error("ERROR {}", ex.toString());
+      }
+      return null;
+    }
+
+    try {
+      // the previous validation may have finished after the cache lookup
+      if (tokenCache.isRejected(digest)) {
+        return null;
+      }
+      tokenPrincipal = tokenCache.get(digest);
+      if (tokenPrincipal == null) {
+        tokenPrincipal = validateToken(token);
+        if (tokenPrincipal != null) {
+          tokenCache.put(digest, tokenPrincipal);
+        }
+      }
+      validation.complete(tokenPrincipal);
+      return tokenPrincipal;
+    } finally {
+      inFlight.remove(digest, validation);
+      // releases the waiters if the validation failed
+      validation.complete(null);
+    }
+  }
+
+  /**
+   * Validates a bearer token. IdH service tokens are validated by their HMAC. JWTs are routed to
+   * their issuer by the iss claim and validated locally if signed with a known key, otherwise at
+   * the issuer. Opaque tokens are checked concurrently at the trusted issuers with opaqueTokens
+   * enabled, the first issuer in configured order accepting the token wins. Users are identified
+   * by their issuer and subject, see {@link #qualify(OidcIssuer, String)}.
+   * 
+   * @param token the bearer token
+   * @return the {@link TokenPrincipal} or null if the token is invalid
+   */
+  public TokenPrincipal validateToken(String token) {
+    SignedJWT jwt = jwtValidator.parse(token);
+    if (jwt != null && serviceTokenIssuer.isServiceToken(jwt)) {
+      TokenPrincipal tokenPrincipal = serviceTokenIssuer.validate(jwt);
+      if (tokenPrincipal == null) {
+        tokenCache.reject(TokenCache.digest(token));
+      }
+      return tokenPrincipal;
+    }
+    OidcIssuer issuer = jwt == null ? null : jwtValidator.getIssuer(jwt);
+    if (issuer != null) {
+      TokenPrincipal tokenPrincipal = null;
+      if (localValidation && jwtValidator.canVerify(jwt, issuer)) {
+        JWTClaimsSet claims = jwtValidator.validate(jwt, issuer);
+        if (claims != null && claims.getSubject() != null) {
+          log.debug("Validated JWT locally {}", claims.getSubject());
+          issuer.countLocalValidation();
+          return principalFromClaims(claims, issuer);
+        }
+        if (claims != null) {
+          log.warn("JWT without subject rejected");
+        }
+        tokenPrincipal = INACTIVE;
+      } else {
+        tokenPrincipal = introspectTokenAsync(token, issuer).join();
+      }
+      if (tokenPrincipal == INACTIVE) {
+        issuer.countRejection();
+        tokenCache.reject(TokenCache.digest(token));
+        return null;
+      }
+      return tokenPrincipal;
+    }
+
+    // opaque tokens carry no issuer, ask the issuers accepting them at once
+    List<CompletableFuture<TokenPrincipal>> introspections = new ArrayList<>();
+    for (OidcIssuer trustedIssuer : discovery.getIssuers()) {
+      if (trustedIssuer.isOpaqueTokens()) {
+        introspections.add(introspectTokenAsync(token, trustedIssuer));
+      }
+    }
+    boolean inactive = true;
+    for (CompletableFuture<TokenPrincipal> introspection : introspections) {
+      TokenPrincipal tokenPrincipal = introspection.join();
+      if (tokenPrincipal != null && tokenPrincipal != INACTIVE) {
+        return tokenPrincipal;
+      }
+      inactive &= tokenPrincipal == INACTIVE;
+    }
+    if (inactive) {
+      tokenCache.reject(TokenCache.digest(token));
+    }
+    return null;
+  }
+
+  /**
+   * Qualifies a subject with its issuer, subjects are only unique per issuer. Subjects of the
+   * default issuer stay unqualified, so that existing principal names remain valid. The issuer
+   * URL has no fragment, so the first '#' separates issuer and subject.
+   * 
+   * @param issuer the {@link OidcIssuer}
+   * @param subject the subject
+   * @return the qualified principal name
+   */
+  public String qualify(OidcIssuer issuer, String subject) {
+    if (issuer == discovery.getDefaultIssuer()) {
+      return subject;
+    }
+    return issuer.getIssuer() + "#" + subject;
+  }
+
+  private TokenPrincipal principalFromClaims(JWTClaimsSet claims, OidcIssuer issuer) {
+    String subject = claims.getSubject();
+    String clientId = null;
+    String authorizedParty = null;
+    try {
+      clientId = claims.getStringClaim("client_id");
+      authorizedParty = claims.getStringClaim("azp");
+    } catch (ParseException ex) {
+      log.warn("Invalid client claim {}", ex.getMessage());
+    }
+
+    // client credential tokens are issued to the client itself
+    if (subject.equals(clientId) || subject.equals(authorizedParty)) {
+      return new TokenPrincipal("client", "ROLE_CLIENT",
+          claims.getExpirationTime().getTime());
+    }
+    return new TokenPrincipal(qualify(issuer, subject), "ROLE_USER",
+        claims.getExpirationTime().getTime());
+  }
+
+  private CompletableFuture<TokenPrincipal> introspectTokenAsync(String token,
+      OidcIssuer issuer) {
+    issuer.countRemoteValidation();
+    // check for user token
+    return httpClient.makeHttpsGetRequestAsync(token, issuer.getUserInfoEndpoint())
+        .thenCompose(response -> {
+          if (response != null && response.statusCode == HttpStatus.OK.value()) {
+            log.debug("User info {}", response.getResponseString());
+
+            JSONObject json = new JSONObject(response.getResponseString());
+            String subject = json.optString("sub", null);
+            if (subject == null) {
+              log.warn("User info of {} without subject", issuer.getIssuer());
+              return CompletableFuture.completedFuture(null);
+            }
+
+            return CompletableFuture.completedFuture(
+                new TokenPrincipal(qualify(issuer, subject), "ROLE_USER", 0));
+          }
+          // check for client token
+          String body = "token=" + token;
+          return httpClient.makeHttpsPostRequestAsync(issuer.getClientId(),
+              issuer.getClientSecret(), body, issuer.getIntrospectionEndpoint())
+              .thenApply(this::principalFromIntrospection);
+        });
+  }
+
+  private TokenPrincipal principalFromIntrospection(HttpResponse response) {
+    if (response != null && response.statusCode == HttpStatus.OK.value()) {
+      log.debug("Token info {}", response.getResponseString());
+
+      JSONObject json = new JSONObject(response.getResponseString());
+      if (json.optBoolean("active", false)) {
+        return new TokenPrincipal("client", "ROLE_CLIENT", json.optLong("exp", 0) * 1000);
+      }
+      // expired or revoked
+      return INACTIVE;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Authenticates trusted TLS client certificates, mapped to roles as x509.clients[n].*. A client is
+ * matched by its certificate's pinned SHA-256 fingerprint only, a subject DN can be claimed by any
+ * certificate of a CA the TLS trust store accepts. Requests with an unmapped certificate are left
+ * to the other authentication schemes.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "x509")
+public class ClientCertificateAuthenticator implements Authenticator {
+
+  private static final Logger log = LoggerFactory.getLogger(ClientCertificateAuthenticator.class);
+
+  private static final String CERTIFICATE_ATTRIBUTE = "javax.servlet.request.X509Certificate";
+
+  private boolean enabled;
+
+  private List<Client> clients = new ArrayList<>();
+
+  /**
+   * Checks that every configured client pins a fingerprint.
+   * 
+   * @throws IllegalStateException if a client has no fingerprint
+   */
+  @PostConstruct
+  public void init() {
+    if (!enabled) {
+      return;
+    }
+    for (int i = 0; i < clients.size(); i++) {
+      if (clients.get(i).getFingerprint() == null || clients.get(i).getFingerprint().isEmpty()) {
+        throw new IllegalStateException("x509.clients[" + i + "].fingerprint required");
+      }
+    }
+  }
+
+  /**
+   * Computes the certificate's fingerprint.
+   * 
+   * @param certificate the {@link X509Certificate}
+   * @return the hex encoded SHA-256 fingerprint or null on error
+   */
+  public static String fingerprint(X509Certificate certificate) {
+    try {
+      return DigestUtils.sha256Hex(certificate.getEncoded());
+    } catch (CertificateEncodingException ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Gets the configured client for a certificate.
+   * 
+   * @param certificate the client's {@link X509Certificate}
+   * @return the {@link Client} or null if the certificate is not mapped
+   */
+  public Client getClient(X509Certificate certificate) {
+    String fingerprint = fingerprint(certificate);
+    for (Client client : clients) {
+      if (client.getFingerprint() != null && fingerprint != null
+          && fingerprint.equalsIgnoreCase(client.getFingerprint().replace(":", ""))) {
+        return client;
+      }
+    }
+    log.debug("Client certificate {} not mapped", certificate.getSubjectX500Principal());
+    return null;
+  }
+
+  @Override
+  public Authentication authenticate(HttpServletRequest request) {
+    X509Certificate[] certificates =
+        (X509Certificate[]) request.getAttribute(CERTIFICATE_ATTRIBUTE);
+    if (certificates == null || certificates.length == 0) {
+      return null;
+    }
+    Client client = getClient(certificates[0]);
+    if (client == null) {
+      return null;
+    }
+    String subject = certificates[0].getSubjectX500Principal().getName();
+    log.debug("Client certificate {} as {}", subject, client.getRole());
+    return new PreAuthenticatedAuthenticationToken(subject, certificates[0],
+        AuthorityUtils.createAuthorityList(client.getRole()));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public List<Client> getClients() {
+    return clients;
+  }
+
+  public void setClients(List<Client> clients) {
+    this.clients = clients;
+  }
+
+  public static class Client {
+
+    private String fingerprint;
+
+    private String role = "ROLE_CLIENT";
+
+    public String getFingerprint() {
+      return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+
+    public String getRole() {
+      return role;
+    }
+
+    public void setRole(String role) {
+      this.role = role;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Issues and validates short-lived, HMAC signed IdH service tokens. Machine clients exchange a
+ * validated IAM token once for a service token, which is then validated without contacting IAM.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class ServiceTokenIssuer {
+
+  private static final Logger log = LoggerFactory.getLogger(ServiceTokenIssuer.class);
+
+  @Value("${idh.serviceToken.issuer}")
+  private String issuer;
+
+  @Value("${idh.serviceToken.secret}")
+  private String secret;
+
+  @Value("${idh.serviceToken.ttl}")
+  private long ttl;
+
+  private JWSSigner signer;
+
+  private JWSVerifier verifier;
+
+  /**
+   * Creates the signer and verifier. The secret is shared by all nodes, without a configured
+   * secret service tokens are disabled.
+   * 
+   * @throws Exception if the secret is shorter than 256 bits
+   */
+  @PostConstruct
+  public void init() throws Exception {
+    if (secret == null || secret.isEmpty()) {
+      log.info("No service token secret configured, service tokens disabled");
+      return;
+    }
+    byte[] key = secret.getBytes(StandardCharsets.UTF_8);
+    signer = new MACSigner(key);
+    verifier = new MACVerifier(key);
+  }
+
+  public boolean isEnabled() {
+    return signer != null;
+  }
+
+  /**
+   * Gets the expiration of a service token exchanged for a presented token. Service tokens never
+   * outlive the presented token.
+   * 
+   * @param presentedExpiresAt the presented token's expiration in milliseconds since epoch, 0 if
+   *        unknown
+   * @return the service token's expiration in milliseconds since epoch
+   */
+  public long getExpiresAt(long presentedExpiresAt) {
+    long expiresAt = System.currentTimeMillis() + ttl * 1000;
+    if (presentedExpiresAt > 0 && presentedExpiresAt < expiresAt) {
+      return presentedExpiresAt;
+    }
+    return expiresAt;
+  }
+
+  /**
+   * Issues a service token.
+   * 
+   * @param principal the token's principal
+   * @param expiresAt the token's expiration in milliseconds since epoch, see
+   *        {@link #getExpiresAt(long)}
+   * @return the serialized service token or null on error or if service tokens are disabled
+   */
+  public String issue(String principal, long expiresAt) {
+    if (!isEnabled()) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    JWTClaimsSet claims = new JWTClaimsSet.Builder().issuer(issuer).subject(principal)
+        .issueTime(new Date(now)).expirationTime(new Date(expiresAt))
+        .jwtID(UUID.randomUUID().toString()).build();
+    try {
+      SignedJWT jwt = new SignedJWT(new JWSHeader(JWSAlgorithm.HS256), claims);
+      jwt.sign(signer);
+      return jwt.serialize();
+    } catch (Exception ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+
+  /**
+   * Checks if the JWT claims to be an IdH service token. The claim is not verified.
+   * 
+   * @param jwt the {@link SignedJWT}
+   * @return true if the JWT's issuer is IdH
+   */
+  public boolean isServiceToken(SignedJWT jwt) {
+    try {
+      return JWSAlgorithm.HS256.equals(jwt.getHeader().getAlgorithm())
+          && issuer.equals(jwt.getJWTClaimsSet().getIssuer());
+    } catch (ParseException ex) {
+      log.debug("Invalid JWT claims {}", ex.getMessage());
+    }
+    return false;
+  }
+
+  /**
+   * Checks if the bearer token claims to be an IdH service token.
+   * 
+   * @param token the bearer token
+   * @return true if the token's issuer is IdH
+   */
+  public boolean isServiceToken(String token) {
+    try {
+      return isServiceToken(SignedJWT.parse(token));
+    } catch (ParseException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Validates a service token's signature and expiration.
+   * 
+   * @param jwt the {@link SignedJWT}
+   * @return the {@link TokenPrincipal} or null if the token is invalid or service tokens are
+   *         disabled
+   */
+  public TokenPrincipal validate(SignedJWT jwt) {
+    if (!isEnabled()) {
+      log.warn("Service tokens disabled");
+      return null;
+    }
+    try {
+      if (!jwt.verify(verifier)) {
+        log.warn("Invalid service token signature");
+        return null;
+      }
+      JWTClaimsSet claims = jwt.getJWTClaimsSet();
+      Date exp = claims.getExpirationTime();
+      if (exp == null || exp.getTime() < System.currentTimeMillis()) {
+        log.debug("Service token expired");
+        return null;
+      }
+      return new TokenPrincipal(claims.getSubject(), "ROLE_CLIENT", exp.getTime());
+    } catch (Exception ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+}
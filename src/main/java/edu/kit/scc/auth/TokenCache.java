@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+import edu.kit.scc.redis.RedisClient;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of validated bearer tokens, keyed by the token's SHA-256 digest, evicting the
+ * least recently used token. Optionally backed by redis, so that tokens validated on one node are
+ * accepted on all nodes.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class TokenCache implements PublicMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(TokenCache.class);
+
+  @Value("${oidc.cache.maxSize}")
+  private int maxSize;
+
+  @Value("${oidc.cache.maxTtl}")
+  private long maxTtl;
+
+  @Value("${oidc.cache.negativeTtl}")
+  private long negativeTtl;
+
+  @Value("${oidc.cache.redis}")
+  private boolean redisEnabled;
+
+  @Autowired
+  private RedisClient redisClient;
+
+  // access ordered, so the eldest entry is the least recently used
+  private final Map<String, Entry> cache =
+      Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          if (size() > TokenCache.this.maxSize
+              || eldest.getValue().expiresAt <= System.currentTimeMillis()) {
+            evictions.incrementAndGet();
+            return true;
+          }
+          return false;
+        }
+      });
+
+  // insertion ordered, with the same negative TTL for all entries the eldest expires first
+  private final Map<String, Long> rejected =
+      Collections.synchronizedMap(new LinkedHashMap<String, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > TokenCache.this.maxSize
+              || eldest.getValue() <= System.currentTimeMillis();
+        }
+      });
+
+  private final AtomicLong rejectedHits = new AtomicLong();
+
+  private final AtomicLong redisHits = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Computes the cache key for a bearer token.
+   * 
+   * @param token the bearer token
+   * @return the token's hex encoded SHA-256 digest
+   */
+  public static String digest(String token) {
+    return DigestUtils.sha256Hex(token);
+  }
+
+  /**
+   * Gets a cached token principal.
+   * 
+   * @param digest the token's digest
+   * @return the cached {@link TokenPrincipal} or null if not cached or expired
+   */
+  public TokenPrincipal get(String digest) {
+    Entry entry = cache.get(digest);
+    if (entry != null) {
+      if (entry.expiresAt > System.currentTimeMillis()) {
+        hits.incrementAndGet();
+        return entry.principal;
+      }
+      cache.remove(digest, entry);
+    }
+    if (redisEnabled) {
+      TokenPrincipal principal = getFromRedis(digest);
+      if (principal != null) {
+        redisHits.incrementAndGet();
+        putLocal(digest, principal);
+        return principal;
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches a token principal until the earlier of the token's expiration and the maximum TTL.
+   * 
+   * @param digest the token's digest
+   * @param principal the validated {@link TokenPrincipal}
+   */
+  public void put(String digest, TokenPrincipal principal) {
+    putLocal(digest, principal);
+
+    if (redisEnabled) {
+      putToRedis(digest, principal);
+    }
+  }
+
+  private void putLocal(String digest, TokenPrincipal principal) {
+    if (maxSize <= 0) {
+      return;
+    }
+    long expiresAt = System.currentTimeMillis() + maxTtl * 1000;
+    if (principal.getExpiresAt() > 0) {
+      expiresAt = Math.min(expiresAt, principal.getExpiresAt());
+    }
+    cache.put(digest, new Entry(principal, expiresAt));
+  }
+
+  /**
+   * Remembers a token the OIDC provider rejected for the negative TTL.
+   * 
+   * @param digest the token's digest
+   */
+  public void reject(String digest) {
+    if (maxSize <= 0 || negativeTtl <= 0) {
+      return;
+    }
+    long expiresAt = System.currentTimeMillis() + negativeTtl * 1000;
+    synchronized (rejected) {
+      // moves a rejected token to the end of the expiration order
+      rejected.remove(digest);
+      rejected.put(digest, expiresAt);
+    }
+  }
+
+  /**
+   * Checks if a token was rejected recently.
+   * 
+   * @param digest the token's digest
+   * @return true if the token was rejected within the negative TTL
+   */
+  public boolean isRejected(String digest) {
+    Long expiresAt = rejected.get(digest);
+    if (expiresAt == null) {
+      return false;
+    }
+    if (expiresAt > System.currentTimeMillis()) {
+      rejectedHits.incrementAndGet();
+      return true;
+    }
+    rejected.remove(digest, expiresAt);
+    return false;
+  }
+
+  /**
+   * Removes a token from the local cache.
+   * 
+   * @param digest the token's digest
+   */
+  public void invalidate(String digest) {
+    cache.remove(digest);
+    rejected.remove(digest);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getRedisHits() {
+    return redisHits.get();
+  }
+
+  public long getRejectedHits() {
+    return rejectedHits.get();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Long>("auth.tokenCache.hits", hits.get()));
+    metrics.add(new Metric<Long>("auth.tokenCache.misses", misses.get()));
+    metrics.add(new Metric<Long>("auth.tokenCache.redis.hits", redisHits.get()));
+    metrics.add(new Metric<Long>("auth.tokenCache.evictions", evictions.get()));
+    metrics.add(new Metric<Integer>("auth.tokenCache.size", cache.size()));
+    metrics.add(new Metric<Long>("auth.tokenCache.rejected.hits", rejectedHits.get()));
+    metrics.add(new Metric<Integer>("auth.tokenCache.rejected.size", rejected.size()));
+    return metrics;
+  }
+
+  private TokenPrincipal getFromRedis(String digest) {
+    try {
+      String value = redisClient.getToken(digest);
+      if (value != null) {
+        JSONObject json = new JSONObject(value);
+        return new TokenPrincipal(json.getString("principal"), json.getString("role"),
+            json.getLong("expiresAt"));
+      }
+    } catch (Exception ex) {
+      log.warn("Could not read token from redis {}", ex.toString());
+    }
+    return null;
+  }
+
+  private void putToRedis(String digest, TokenPrincipal principal) {
+    long now = System.currentTimeMillis();
+    long expiresAt = now + maxTtl * 1000;
+    if (principal.getExpiresAt() > 0) {
+      expiresAt = Math.min(expiresAt, principal.getExpiresAt());
+    }
+    if (expiresAt <= now) {
+      return;
+    }
+    JSONObject json = new JSONObject();
+    json.put("principal", principal.getPrincipal());
+    json.put("role", principal.getRole());
+    json.put("expiresAt", expiresAt);
+    try {
+      redisClient.setToken(digest, json.toString(), expiresAt - now);
+    } catch (Exception ex) {
+      log.warn("Could not write token to redis {}", ex.toString());
+    }
+  }
+
+  private static final class Entry {
+    private final TokenPrincipal principal;
+    private final long expiresAt;
+
+    private Entry(TokenPrincipal principal, long expiresAt) {
+      this.principal = principal;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
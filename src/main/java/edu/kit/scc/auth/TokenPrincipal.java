@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.auth;
+
+/**
+ * Result of a successful bearer token validation.
+ * 
+ * @author benjamin
+ *
+ */
+public class TokenPrincipal {
+
+  private final String principal;
+
+  private final String role;
+
+  private final long expiresAt;
+
+  /**
+   * Creates a new validated token principal.
+   * 
+   * @param principal the resolved principal, e.g. the token's subject
+   * @param role the granted role, e.g. ROLE_USER
+   * @param expiresAt the token's expiration in milliseconds since epoch, 0 if unknown
+   */
+  public TokenPrincipal(String principal, String role, long expiresAt) {
+    this.principal = principal;
+    this.role = role;
+    this.expiresAt = expiresAt;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  public String getRole() {
+    return role;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  @Override
+  public String toString() {
+    return "TokenPrincipal [principal=" + principal + ", role=" + role + ", expiresAt=" + expiresAt
+        + "]";
+  }
+}
@@ -11,12 +11,15 @@ package edu.kit.scc.auth;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.web.authentication.www.BasicAuthenticationEntryPoint;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
 
 @Configuration
@@ -28,16 +31,28 @@ public class WebSecurityConfiguration extends WebSecurityConfigurerAdapter {
   UserDetailsService userDetailsService;
 
   @Autowired
-  OidcAuthenticationFilter oidcAuthenticationFilter;
+  AuthenticationChainFilter authenticationChainFilter;
 
   @Autowired
   public void configureGlobal(AuthenticationManagerBuilder auth) throws Exception {
     auth.userDetailsService(userDetailsService);
   }
 
+  // exposed for the BasicAuthenticator
+  @Bean
+  @Override
+  public AuthenticationManager authenticationManagerBean() throws Exception {
+    return super.authenticationManagerBean();
+  }
+
   @Override
   protected void configure(HttpSecurity http) throws Exception {
-    http.authorizeRequests().anyRequest().fullyAuthenticated().and().httpBasic().and().csrf()
-        .disable().addFilterBefore(oidcAuthenticationFilter, BasicAuthenticationFilter.class);
+    BasicAuthenticationEntryPoint entryPoint = new BasicAuthenticationEntryPoint();
+    entryPoint.setRealmName("Realm");
+
+    // one authenticator per request, selected by client certificate or authorization scheme
+    http.authorizeRequests().anyRequest().fullyAuthenticated().and().exceptionHandling()
+        .authenticationEntryPoint(entryPoint).and().csrf().disable()
+        .addFilterBefore(authenticationChainFilter, BasicAuthenticationFilter.class);
   }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of a remote host. After a number of consecutive failures the circuit opens and
+ * requests fail fast. When the open time has passed, a single trial request is let through; its
+ * success closes the circuit again, its failure reopens it.
+ * 
+ * @author benjamin
+ *
+ */
+public class CircuitBreaker {
+
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN
+  }
+
+  private final String name;
+
+  private final int failureThreshold;
+
+  private final long openTime;
+
+  private State state = State.CLOSED;
+
+  private int consecutiveFailures;
+
+  private long openedAt;
+
+  private boolean trialPending;
+
+  private long failures;
+
+  private long rejections;
+
+  private long opened;
+
+  /**
+   * Creates a closed circuit breaker.
+   * 
+   * @param name the name, e.g. the remote host
+   * @param failureThreshold the consecutive failures that open the circuit
+   * @param openTime the time in milliseconds the circuit stays open
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openTime) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+  }
+
+  /**
+   * Checks whether a request may be made. Every allowed request has to be reported by
+   * {@link #success()} or {@link #failure()}.
+   * 
+   * @return true if the request may be made
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.OPEN && System.nanoTime() - openedAt >= openTime) {
+      state = State.HALF_OPEN;
+      trialPending = false;
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.HALF_OPEN && !trialPending) {
+      trialPending = true;
+      return true;
+    }
+    rejections++;
+    return false;
+  }
+
+  /**
+   * Reports a successful request.
+   */
+  public synchronized void success() {
+    if (state != State.CLOSED) {
+      log.info("Circuit {} closed", name);
+    }
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    trialPending = false;
+  }
+
+  /**
+   * Reports a failed request.
+   */
+  public synchronized void failure() {
+    failures++;
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      if (state != State.OPEN) {
+        log.warn("Circuit {} opened after {} failures", name, consecutiveFailures);
+        opened++;
+      }
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+      trialPending = false;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized long getFailures() {
+    return failures;
+  }
+
+  public synchronized long getRejections() {
+    return rejections;
+  }
+
+  public synchronized long getOpened() {
+    return opened;
+  }
+}
@@ -18,7 +18,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 
 /**
  * Custom URL connection generation class.
@@ -37,28 +36,27 @@ public final class CustomUrlConnection {
    * 
    * @param checkCertificate enables certificate check
    * @param url the URL to connect to
+   * @param properties the {@link HttpEndpointProperties} with the host's timeouts
    * @return a {@link HttpsURLConnection}
    */
-  public static HttpsURLConnection getSecureHttpConnection(boolean checkCertificate, String url) {
+  public static HttpsURLConnection getSecureHttpConnection(boolean checkCertificate, String url,
+      HttpEndpointProperties properties) {
     HttpsURLConnection urlConnection = null;
     try {
       log.debug("Try url {}", url);
       URL uri = new URL(url);
 
-      SSLContext sslContext = null;
+      urlConnection = (HttpsURLConnection) uri.openConnection();
+      setTimeouts(urlConnection, uri, properties);
 
+      // cached SSL contexts, so that TLS sessions are resumed
       if (checkCertificate) {
-        // TODO
-        HttpsURLConnection.setDefaultHostnameVerifier(new NullHostNameVerifier());
-        sslContext = CustomSslContext.initEmptySslContext();
+        urlConnection.setSSLSocketFactory(SslContextRegistry.getDefaultSocketFactory());
       } else {
-        HttpsURLConnection.setDefaultHostnameVerifier(new NullHostNameVerifier());
-        sslContext = CustomSslContext.initEmptySslContext();
+        urlConnection.setSSLSocketFactory(SslContextRegistry.getTrustAllSocketFactory());
+        urlConnection.setHostnameVerifier(new NullHostNameVerifier());
       }
 
-      urlConnection = (HttpsURLConnection) uri.openConnection();
-      urlConnection.setSSLSocketFactory(sslContext.getSocketFactory());
-
     } catch (MalformedURLException e) {
       e.printStackTrace();
       log.error(e.getMessage());
@@ -73,15 +71,18 @@ public final class CustomUrlConnection {
    * Initializes a HTTP URL connection.
    * 
    * @param url the URL to connect to
+   * @param properties the {@link HttpEndpointProperties} with the host's timeouts
    * @return a {@link HttpURLConnection}
    */
-  public static HttpURLConnection getHttpConnection(String url) {
+  public static HttpURLConnection getHttpConnection(String url,
+      HttpEndpointProperties properties) {
     HttpURLConnection urlConnection = null;
     try {
       log.debug("Try url {}", url);
       URL uri = new URL(url);
 
       urlConnection = (HttpURLConnection) uri.openConnection();
+      setTimeouts(urlConnection, uri, properties);
 
     } catch (MalformedURLException e) {
       // e.printStackTrace();
@@ -92,4 +93,11 @@ public final class CustomUrlConnection {
     }
     return urlConnection;
   }
+
+  // so that a stalled server cannot hang the caller
+  private static void setTimeouts(HttpURLConnection urlConnection, URL uri,
+      HttpEndpointProperties properties) {
+    urlConnection.setConnectTimeout(properties.getConnectTimeout(uri.getHost()));
+    urlConnection.setReadTimeout(properties.getReadTimeout(uri.getHost()));
+  }
 }
@@ -10,29 +10,231 @@
 package edu.kit.scc.http;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.RequestMethod;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
 
 /**
- * HTTP client implementation.
+ * HTTP client implementation. Connections are pooled per host and kept alive between requests.
+ * The asynchronous variants run on non-blocking I/O and do not hold the calling thread. The
+ * streaming variants hand the response body to a {@link StreamHandler} without buffering it.
+ * Responses may be gzip or deflate compressed and are decoded while read. Failed GET requests are
+ * retried with jittered backoff, and a per host {@link CircuitBreaker} fails requests fast while
+ * the host is unhealthy. Public documents requested with
+ * {@link #makeCachedGetRequest(String)} are cached as allowed by their Cache-Control headers and
+ * revalidated by ETag or Last-Modified.
  * 
  * @author benjamin
  *
  */
 @Component
-public class HttpClient {
+public class HttpClient implements PublicMetrics {
 
   private static final Logger log = LoggerFactory.getLogger(HttpClient.class);
 
+  private static final ContentType FORM_URLENCODED =
+      ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8);
+
+  @Value("${http.maxConnections}")
+  private int maxConnections;
+
+  @Value("${http.maxConnectionsPerHost}")
+  private int maxConnectionsPerHost;
+
+  @Value("${http.keepAlive}")
+  private long keepAlive;
+
+  @Value("${http.idleTimeout}")
+  private long idleTimeout;
+
+  @Value("${http.compressionThreshold}")
+  private int compressionThreshold;
+
+  @Value("${http.cache.enabled}")
+  private boolean cacheEnabled;
+
+  @Value("${http.cache.maxSize}")
+  private int cacheMaxSize;
+
+  @Value("${http.maxRetries}")
+  private int maxRetries;
+
+  @Value("${http.retryBackoff}")
+  private long retryBackoff;
+
+  @Value("${http.circuitBreaker.failureThreshold}")
+  private int failureThreshold;
+
+  @Value("${http.circuitBreaker.openTime}")
+  private long openTime;
+
+  @Autowired
+  private HttpEndpointProperties endpointProperties;
+
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  private PoolingHttpClientConnectionManager connectionManager;
+
+  private PoolingHttpClientConnectionManager secureConnectionManager;
+
+  private CloseableHttpClient httpClient;
+
+  private CloseableHttpClient secureHttpClient;
+
+  private CloseableHttpAsyncClient asyncHttpClient;
+
+  private CloseableHttpAsyncClient secureAsyncHttpClient;
+
+  private ConnectionKeepAliveStrategy keepAliveStrategy;
+
+  private ExecutorService streamExecutor;
+
+  private HttpResponseCache responseCache;
+
+  private final ConcurrentMap<String, RequestConfig> requestConfigs = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the pooled clients, one with the default trust for HTTP(S) and one without
+   * certificate checks for HTTPS.
+   */
+  @PostConstruct
+  public void init() {
+    // keep connections alive as long as the server allows, at most the configured time
+    keepAliveStrategy = (response, context) -> {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+          .getKeepAliveDuration(response, context);
+      return duration > 0 ? Math.min(duration, keepAlive * 1000) : keepAlive * 1000;
+    };
+
+    connectionManager = createConnectionManager(
+        new SSLConnectionSocketFactory(SslContextRegistry.getDefaultContext()));
+    httpClient = createClient(connectionManager);
+
+    secureConnectionManager = createConnectionManager(new SSLConnectionSocketFactory(
+        SslContextRegistry.getTrustAllContext(), new NullHostNameVerifier()));
+    secureHttpClient = createClient(secureConnectionManager);
+
+    asyncHttpClient = createAsyncClient(SslContextRegistry.getDefaultContext(),
+        SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+    secureAsyncHttpClient = createAsyncClient(SslContextRegistry.getTrustAllContext(),
+        new NullHostNameVerifier());
+
+    if (cacheEnabled) {
+      responseCache = new HttpResponseCache(cacheMaxSize);
+    }
+
+    // a stream holds its connection while read, so no more streams than connections per host
+    streamExecutor = Executors.newFixedThreadPool(maxConnectionsPerHost,
+        new CustomizableThreadFactory("idh-http-"));
+  }
+
+  /**
+   * Closes the clients and their pooled connections.
+   * 
+   * @throws IOException if closing the connections fails
+   */
+  @PreDestroy
+  public void cleanUp() throws IOException {
+    httpClient.close();
+    secureHttpClient.close();
+    asyncHttpClient.close();
+    secureAsyncHttpClient.close();
+    streamExecutor.shutdownNow();
+  }
+
+  private PoolingHttpClientConnectionManager createConnectionManager(
+      SSLConnectionSocketFactory sslSocketFactory) {
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+        .register("https", sslSocketFactory).build();
+    PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(registry);
+    manager.setMaxTotal(maxConnections);
+    manager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    // revalidate connections that were idle for a while before reuse
+    manager.setValidateAfterInactivity(1000);
+    return manager;
+  }
+
+  private CloseableHttpClient createClient(PoolingHttpClientConnectionManager manager) {
+    return HttpClients.custom().setConnectionManager(manager)
+        .setKeepAliveStrategy(keepAliveStrategy).evictExpiredConnections()
+        .evictIdleConnections(idleTimeout, TimeUnit.SECONDS).build();
+  }
+
+  private CloseableHttpAsyncClient createAsyncClient(SSLContext sslContext,
+      HostnameVerifier hostnameVerifier) {
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom().setSSLContext(sslContext)
+        .setSSLHostnameVerifier(hostnameVerifier).setMaxConnTotal(maxConnections)
+        .setMaxConnPerRoute(maxConnectionsPerHost).setKeepAliveStrategy(keepAliveStrategy)
+        .build();
+    client.start();
+    return client;
+  }
+
   /**
    * Makes a HTTP GET request.
    * 
@@ -55,8 +257,7 @@ public class HttpClient {
    *         stream as {@link byte[]}
    */
   public HttpResponse makeHttpGetRequest(String user, String password, String url) {
-    return makeRequest(CustomUrlConnection.getHttpConnection(url), user, password, null,
-        RequestMethod.GET);
+    return makeRequest(httpClient, url, user, password, null, RequestMethod.GET);
   }
 
   /**
@@ -82,8 +283,7 @@ public class HttpClient {
    *         stream as {@link byte[]}
    */
   public HttpResponse makeHttpPostRequest(String user, String password, String body, String url) {
-    return makeRequest(CustomUrlConnection.getHttpConnection(url), user, password, body,
-        RequestMethod.POST);
+    return makeRequest(httpClient, url, user, password, body, RequestMethod.POST);
   }
 
   /**
@@ -107,8 +307,7 @@ public class HttpClient {
    *         stream as {@link byte[]}
    */
   public HttpResponse makeHttpsGetRequest(String user, String password, String url) {
-    return makeRequest(CustomUrlConnection.getSecureHttpConnection(false, url), user, password,
-        null, RequestMethod.GET);
+    return makeRequest(secureHttpClient, url, user, password, null, RequestMethod.GET);
   }
 
   /**
@@ -120,8 +319,20 @@ public class HttpClient {
    *         stream as {@link byte[]}
    */
   public HttpResponse makeHttpsGetRequest(String token, String url) {
-    return makeRequest(CustomUrlConnection.getSecureHttpConnection(false, url), token, null, null,
-        RequestMethod.GET);
+    return makeRequest(secureHttpClient, url, token, null, null, RequestMethod.GET);
+  }
+
+  /**
+   * Makes a HTTP(S) GET request for a public document, e.g. OIDC discovery metadata or keys. HTTPS
+   * servers are verified against the JVM's trust store. Responses are served from the response
+   * cache while fresh. Requests with credentials are never cached.
+   * 
+   * @param url the URL for the request
+   * @return a {@link edu.kit.scc.http.HttpResponse} with the request's response code and response
+   *         stream as {@link byte[]}
+   */
+  public HttpResponse makeCachedGetRequest(String url) {
+    return makeRequest(httpClient, url, null, null, null, RequestMethod.GET, true);
   }
 
   /**
@@ -147,82 +358,521 @@ public class HttpClient {
    *         stream as {@link byte[]}
    */
   public HttpResponse makeHttpsPostRequest(String user, String password, String body, String url) {
-    return makeRequest(CustomUrlConnection.getSecureHttpConnection(false, url), user, password,
-        body, RequestMethod.POST);
+    return makeRequest(secureHttpClient, url, user, password, body, RequestMethod.POST);
   }
 
-  private HttpResponse makeRequest(HttpURLConnection urlConnection, String user, String password,
-      String body, RequestMethod method) {
-    HttpResponse response = null;
-    OutputStream out = null;
-    InputStream in = null;
-    BufferedReader buffReader = null;
+  /**
+   * Makes an asynchronous HTTP GET request.
+   * 
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpGetRequestAsync(String url) {
+    return makeHttpGetRequestAsync(null, null, url);
+  }
 
-    try {
-      urlConnection.setRequestMethod(method.toString());
-      urlConnection.setRequestProperty("Accept", "*/*");
-
-      if (user != null && !user.isEmpty()) {
-        if (password != null && !password.isEmpty()) {
-          String value = Base64.encodeBase64String((user + ":" + password).getBytes());
-          log.debug("Authorization: Basic {}", value);
-          urlConnection.setRequestProperty("Authorization", "Basic " + value);
-        } else {
-          log.debug("Authorization: Bearer {}", user);
-          urlConnection.setRequestProperty("Authorization", "Bearer " + user);
-        }
-      }
+  /**
+   * Makes an asynchronous HTTP GET request with basic authorization.
+   * 
+   * @param user the user for basic HTTP authorization
+   * @param password the user's password for basic HTTP authorization
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpGetRequestAsync(String user, String password,
+      String url) {
+    return makeRequestAsync(asyncHttpClient, url, user, password, null, RequestMethod.GET);
+  }
 
-      if (body != null) {
-        urlConnection.setDoOutput(true);
+  /**
+   * Makes an asynchronous HTTP POST request.
+   * 
+   * @param body the body for the HTTP POST request
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpPostRequestAsync(String body, String url) {
+    return makeHttpPostRequestAsync(null, null, body, url);
+  }
 
-        byte[] bodyBytes = body.getBytes("UTF-8");
-        out = urlConnection.getOutputStream();
-        out.write(bodyBytes);
-      }
+  /**
+   * Makes an asynchronous HTTP POST request with basic authorization.
+   * 
+   * @param user the user for basic HTTP authorization
+   * @param password the user's password for basic HTTP authorization
+   * @param body the body for the HTTP POST request
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpPostRequestAsync(String user, String password,
+      String body, String url) {
+    return makeRequestAsync(asyncHttpClient, url, user, password, body, RequestMethod.POST);
+  }
 
-      urlConnection.connect();
-      in = urlConnection.getInputStream();
-      buffReader = new BufferedReader(new InputStreamReader(in));
-      StringBuffer stringBuffer = new StringBuffer();
-      String inputLine;
-      while ((inputLine = buffReader.readLine()) != null) {
-        stringBuffer.append(inputLine);
-      }
-      response = new HttpResponse(urlConnection.getResponseCode(), stringBuffer.toString());
+  /**
+   * Makes an asynchronous HTTPS GET request.
+   * 
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpsGetRequestAsync(String url) {
+    return makeHttpsGetRequestAsync(null, null, url);
+  }
+
+  /**
+   * Makes an asynchronous HTTPS GET request with basic authorization.
+   * 
+   * @param user the user for basic HTTP authorization
+   * @param password the user's password for basic HTTP authorization
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpsGetRequestAsync(String user, String password,
+      String url) {
+    return makeRequestAsync(secureAsyncHttpClient, url, user, password, null, RequestMethod.GET);
+  }
+
+  /**
+   * Makes an asynchronous HTTPS GET request with bearer authorization.
+   * 
+   * @param token the token for bearer HTTP authorization
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpsGetRequestAsync(String token, String url) {
+    return makeRequestAsync(secureAsyncHttpClient, url, token, null, null, RequestMethod.GET);
+  }
+
+  /**
+   * Makes an asynchronous HTTPS POST request.
+   * 
+   * @param body the body for the HTTP POST request
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpsPostRequestAsync(String body, String url) {
+    return makeHttpsPostRequestAsync(null, null, body, url);
+  }
+
+  /**
+   * Makes an asynchronous HTTPS POST request with basic authorization.
+   * 
+   * @param user the user for basic HTTP authorization
+   * @param password the user's password for basic HTTP authorization
+   * @param body the body for the HTTP POST request
+   * @param url the URL for the request
+   * @return a {@link CompletableFuture} completed with the {@link edu.kit.scc.http.HttpResponse}
+   *         or null on errors
+   */
+  public CompletableFuture<HttpResponse> makeHttpsPostRequestAsync(String user, String password,
+      String body, String url) {
+    return makeRequestAsync(secureAsyncHttpClient, url, user, password, body, RequestMethod.POST);
+  }
+
+  /**
+   * Makes a HTTP GET request and streams the response body to the handler.
+   * 
+   * @param url the URL for the request
+   * @param handler the {@link StreamHandler} for the response body
+   * @return the handler's result or null on errors
+   */
+  public <T> T streamHttpGetRequest(String url, StreamHandler<T> handler) {
+    return streamRequest(httpClient, url, null, null, handler);
+  }
+
+  /**
+   * Makes a HTTPS GET request with bearer authorization and streams the response body to the
+   * handler.
+   * 
+   * @param token the token for bearer HTTP authorization
+   * @param url the URL for the request
+   * @param handler the {@link StreamHandler} for the response body
+   * @return the handler's result or null on errors
+   */
+  public <T> T streamHttpsGetRequest(String token, String url, StreamHandler<T> handler) {
+    return streamRequest(secureHttpClient, url, token, null, handler);
+  }
+
+  /**
+   * Makes an asynchronous HTTPS GET request with bearer authorization and streams the response
+   * body to the handler. The body is read on a separate thread.
+   * 
+   * @param token the token for bearer HTTP authorization
+   * @param url the URL for the request
+   * @param handler the {@link StreamHandler} for the response body
+   * @return a {@link CompletableFuture} completed with the handler's result or null on errors
+   */
+  public <T> CompletableFuture<T> streamHttpsGetRequestAsync(String token, String url,
+      StreamHandler<T> handler) {
+    return CompletableFuture.supplyAsync(() -> streamHttpsGetRequest(token, url, handler),
+        streamExecutor);
+  }
+
+  /**
+   * Gets the response cache.
+   * 
+   * @return the {@link HttpResponseCache} or null if disabled
+   */
+  public HttpResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Marks the cached response of a {@link #makeCachedGetRequest(String)} stale, so that the next
+   * request revalidates it with the server.
+   * 
+   * @param url the URL of the request
+   */
+  public void expireCachedResponse(String url) {
+    if (responseCache != null) {
+      responseCache.expire(url);
+    }
+  }
 
-    } catch (IOException e) {
-      e.printStackTrace();
+  /**
+   * Gets the circuit breaker of the URL's host.
+   * 
+   * @param url the URL
+   * @return the {@link CircuitBreaker} or null if the URL is invalid
+   */
+  public CircuitBreaker getCircuitBreaker(String url) {
+    try {
+      return getCircuitBreaker(URI.create(url));
+    } catch (IllegalArgumentException e) {
       log.error("ERROR {}", e.getMessage());
-    } catch (Exception e) {
-      // e.printStackTrace();
+    }
+    return null;
+  }
+
+  private CircuitBreaker getCircuitBreaker(URI uri) {
+    return circuitBreakers.computeIfAbsent(String.valueOf(uri.getAuthority()),
+        key -> new CircuitBreaker(key, failureThreshold, openTime * 1000));
+  }
+
+  /**
+   * Gets the connection pool and circuit breaker metrics. The circuit state is 0 if closed, 1 if
+   * half open and 2 if open.
+   * 
+   * @return a list of {@link Metric}
+   */
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    addPoolMetrics(metrics, "http.pool", connectionManager.getTotalStats());
+    addPoolMetrics(metrics, "http.securePool", secureConnectionManager.getTotalStats());
+    if (responseCache != null) {
+      metrics.addAll(responseCache.metrics());
+    }
+    for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+      String prefix = "http.circuit." + circuitBreaker.getName();
+      metrics.add(new Metric<Integer>(prefix + ".state", circuitBreaker.getState().ordinal()));
+      metrics.add(new Metric<Long>(prefix + ".failures", circuitBreaker.getFailures()));
+      metrics.add(new Metric<Long>(prefix + ".rejections", circuitBreaker.getRejections()));
+      metrics.add(new Metric<Long>(prefix + ".opened", circuitBreaker.getOpened()));
+    }
+    return metrics;
+  }
+
+  private void addPoolMetrics(List<Metric<?>> metrics, String prefix, PoolStats stats) {
+    metrics.add(new Metric<Integer>(prefix + ".leased", stats.getLeased()));
+    metrics.add(new Metric<Integer>(prefix + ".available", stats.getAvailable()));
+    metrics.add(new Metric<Integer>(prefix + ".pending", stats.getPending()));
+  }
+
+  private HttpResponse makeRequest(CloseableHttpClient client, String url, String user,
+      String password, String body, RequestMethod method) {
+    return makeRequest(client, url, user, password, body, method, false);
+  }
+
+  private HttpResponse makeRequest(CloseableHttpClient client, String url, String user,
+      String password, String body, RequestMethod method, boolean cacheable) {
+    String cacheKey = cacheable ? getCacheKey(url, user, method) : null;
+    HttpResponseCache.Entry cached = cacheKey == null ? null : responseCache.get(cacheKey);
+    if (cached != null && cached.isFresh()) {
+      return cached.getResponse();
+    }
+    try (CloseableHttpResponse response =
+        execute(client, url, user, password, body, method, cached)) {
+      return response == null ? null : handleResponse(response, url, cacheKey, cached);
+    } catch (IOException | RuntimeException e) {
       log.error("ERROR {}", e.getMessage());
-    } finally {
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException e) {
-          // e.printStackTrace();
-          log.error("ERROR {}", e.getMessage());
+    }
+    return null;
+  }
+
+  private <T> T streamRequest(CloseableHttpClient client, String url, String user,
+      String password, StreamHandler<T> handler) {
+    try (CloseableHttpResponse response =
+        execute(client, url, user, password, null, RequestMethod.GET, null)) {
+      if (response == null) {
+        return null;
+      }
+      int statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (statusCode >= 400) {
+        log.error("ERROR {} {}", statusCode, url);
+        try (InputStream in =
+            entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent()) {
+          return handler.handleError(statusCode, in);
         }
       }
-      if (out != null) {
-        try {
-          out.close();
-        } catch (IOException e) {
-          // e.printStackTrace();
-          log.error("ERROR {}", e.getMessage());
+      if (entity == null) {
+        log.error("ERROR {} {}", statusCode, url);
+        return null;
+      }
+      // closing the content stream releases the connection back to the pool
+      try (InputStream in = entity.getContent()) {
+        return handler.handle(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("ERROR {}", e.getMessage());
+    }
+    return null;
+  }
+
+  private CloseableHttpResponse execute(CloseableHttpClient client, String url, String user,
+      String password, String body, RequestMethod method, HttpResponseCache.Entry cached) {
+    for (int attempt = 0;; attempt++) {
+      HttpRequestBase request = createRequest(url, user, password, body, method);
+      if (request == null) {
+        return null;
+      }
+      if (cached != null) {
+        cached.addConditionalHeaders(request);
+      }
+      CircuitBreaker circuitBreaker = getCircuitBreaker(request.getURI());
+      if (!circuitBreaker.allowRequest()) {
+        log.error("ERROR circuit open {}", url);
+        return null;
+      }
+      Exception error = null;
+      try {
+        CloseableHttpResponse response = client.execute(request);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (!isServerFailure(statusCode)) {
+          circuitBreaker.success();
+          return response;
         }
+        circuitBreaker.failure();
+        log.error("ERROR {} {}", statusCode, url);
+        EntityUtils.consume(response.getEntity());
+        response.close();
+      } catch (IOException | RuntimeException e) {
+        circuitBreaker.failure();
+        log.error("ERROR {}", e.getMessage());
+        error = e;
+      }
+      if (!isRetryable(method, attempt, error)) {
+        return null;
+      }
+      try {
+        Thread.sleep(getBackoff(attempt));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  private CompletableFuture<HttpResponse> makeRequestAsync(CloseableHttpAsyncClient client,
+      String url, String user, String password, String body, RequestMethod method) {
+    CompletableFuture<org.apache.http.HttpResponse> future = new CompletableFuture<>();
+    executeAsync(client, url, user, password, body, method, 0, future);
+    return future.thenApply(response -> {
+      if (response == null) {
+        return null;
+      }
+      try {
+        decodeContent(response);
+        return toResponse(response, url);
+      } catch (IOException | RuntimeException e) {
+        log.error("ERROR {}", e.getMessage());
       }
-      if (buffReader != null) {
-        try {
-          buffReader.close();
-        } catch (IOException e) {
-          // e.printStackTrace();
-          log.error("ERROR {}", e.getMessage());
+      return null;
+    });
+  }
+
+  private void executeAsync(CloseableHttpAsyncClient client, String url, String user,
+      String password, String body, RequestMethod method, int attempt,
+      CompletableFuture<org.apache.http.HttpResponse> future) {
+    HttpRequestBase request = createRequest(url, user, password, body, method);
+    if (request == null) {
+      future.complete(null);
+      return;
+    }
+    CircuitBreaker circuitBreaker = getCircuitBreaker(request.getURI());
+    if (!circuitBreaker.allowRequest()) {
+      log.error("ERROR circuit open {}", url);
+      future.complete(null);
+      return;
+    }
+    Runnable retry =
+        () -> executeAsync(client, url, user, password, body, method, attempt + 1, future);
+    try {
+      client.execute(request, new FutureCallback<org.apache.http.HttpResponse>() {
+        @Override
+        public void completed(org.apache.http.HttpResponse response) {
+          int statusCode = response.getStatusLine().getStatusCode();
+          if (isServerFailure(statusCode)) {
+            circuitBreaker.failure();
+            log.error("ERROR {} {}", statusCode, url);
+            retryOrComplete(method, attempt, null, retry, future);
+            return;
+          }
+          circuitBreaker.success();
+          future.complete(response);
+        }
+
+        @Override
+        public void failed(Exception ex) {
+          circuitBreaker.failure();
+          log.error("ERROR {}", ex.getMessage());
+          retryOrComplete(method, attempt, ex, retry, future);
         }
+
+        @Override
+        public void cancelled() {
+          circuitBreaker.failure();
+          future.complete(null);
+        }
+      });
+    } catch (RuntimeException e) {
+      circuitBreaker.failure();
+      log.error("ERROR {}", e.getMessage());
+      future.complete(null);
+    }
+  }
+
+  private void retryOrComplete(RequestMethod method, int attempt, Exception error, Runnable retry,
+      CompletableFuture<org.apache.http.HttpResponse> future) {
+    if (isRetryable(method, attempt, error)) {
+      taskScheduler.schedule(retry, new Date(System.currentTimeMillis() + getBackoff(attempt)));
+    } else {
+      future.complete(null);
+    }
+  }
+
+  // 501 Not Implemented is a permanent answer of a healthy server, not retried
+  private boolean isServerFailure(int statusCode) {
+    return statusCode >= 500 && statusCode != HttpStatus.SC_NOT_IMPLEMENTED;
+  }
+
+  // only idempotent requests are retried, and only on errors that may go away
+  private boolean isRetryable(RequestMethod method, int attempt, Exception error) {
+    return method == RequestMethod.GET && attempt < maxRetries
+        && !(error instanceof UnknownHostException || error instanceof ClientProtocolException
+            || error instanceof SSLException);
+  }
+
+  // exponential backoff with jitter, so that clients do not retry in lockstep
+  private long getBackoff(int attempt) {
+    long backoff = retryBackoff << attempt;
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  private RequestConfig getRequestConfig(URI uri) {
+    return requestConfigs.computeIfAbsent(String.valueOf(uri.getHost()), key -> {
+      int connect = endpointProperties.getConnectTimeout(key);
+      int read = endpointProperties.getReadTimeout(key);
+      return RequestConfig.custom().setConnectTimeout(connect).setConnectionRequestTimeout(connect)
+          .setSocketTimeout(read).build();
+    });
+  }
+
+  private HttpRequestBase createRequest(String url, String user, String password, String body,
+      RequestMethod method) {
+    HttpRequestBase request;
+    try {
+      if (method == RequestMethod.POST) {
+        HttpPost post = new HttpPost(url);
+        if (body != null) {
+          StringEntity entity = new StringEntity(body, FORM_URLENCODED);
+          if (compressionThreshold > 0 && entity.getContentLength() >= compressionThreshold) {
+            post.setEntity(new GzipCompressingEntity(entity));
+          } else {
+            post.setEntity(entity);
+          }
+        }
+        request = post;
+      } else {
+        request = new HttpGet(url);
+      }
+    } catch (RuntimeException e) {
+      log.error("ERROR {}", e.getMessage());
+      return null;
+    }
+    request.setConfig(getRequestConfig(request.getURI()));
+    request.setHeader("Accept", "*/*");
+    request.setHeader("Accept-Encoding", "gzip,deflate");
+
+    if (user != null && !user.isEmpty()) {
+      if (password != null && !password.isEmpty()) {
+        String value = Base64.encodeBase64String((user + ":" + password).getBytes());
+        log.debug("Authorization: Basic {}", value);
+        request.setHeader("Authorization", "Basic " + value);
+      } else {
+        log.debug("Authorization: Bearer {}", user);
+        request.setHeader("Authorization", "Bearer " + user);
       }
     }
-    return response;
+    log.debug("Try url {}", url);
+    return request;
+  }
+
+  // the blocking clients decode compressed responses by themselves, the async ones do not
+  private void decodeContent(org.apache.http.HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+    Header encoding = response.getFirstHeader("Content-Encoding");
+    if (entity == null || encoding == null) {
+      return;
+    }
+    String value = encoding.getValue().trim().toLowerCase(Locale.ROOT);
+    if (value.equals("gzip") || value.equals("x-gzip")) {
+      response.setEntity(new GzipDecompressingEntity(entity));
+    } else if (value.equals("deflate")) {
+      response.setEntity(new DeflateDecompressingEntity(entity));
+    }
+  }
+
+  private HttpResponse handleResponse(org.apache.http.HttpResponse response, String url,
+      String cacheKey, HttpResponseCache.Entry cached) throws IOException {
+    if (cached != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      EntityUtils.consume(response.getEntity());
+      return responseCache.revalidate(cacheKey, cached, response);
+    }
+    HttpResponse result = toResponse(response, url);
+    if (cacheKey != null && result != null) {
+      responseCache.put(cacheKey, response, result);
+    }
+    return result;
+  }
+
+  // only public GET responses are cached, by URL
+  private String getCacheKey(String url, String user, RequestMethod method) {
+    if (responseCache == null || method != RequestMethod.GET || user != null) {
+      return null;
+    }
+    return url;
+  }
+
+  private HttpResponse toResponse(org.apache.http.HttpResponse response, String url)
+      throws IOException {
+    int statusCode = response.getStatusLine().getStatusCode();
+    // reading the entity completely releases the connection back to the pool
+    HttpEntity entity = response.getEntity();
+    String content = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+    if (statusCode >= 400) {
+      log.error("ERROR {} {}", statusCode, url);
+      return null;
+    }
+    return new HttpResponse(statusCode, content);
   }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.http;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP client timeouts, configured as http.connectTimeout and http.readTimeout, and per host
+ * settings, configured as http.endpoints[n].*. Hosts without settings use the plain http.*
+ * timeouts.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "http")
+public class HttpEndpointProperties {
+
+  private int connectTimeout = 5000;
+
+  private int readTimeout = 10000;
+
+  private List<Endpoint> endpoints = new ArrayList<>();
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the connect timeout of a host.
+   * 
+   * @param host the host name
+   * @return the host's connect timeout in milliseconds, http.connectTimeout if not set
+   */
+  public int getConnectTimeout(String host) {
+    Endpoint endpoint = getEndpoint(host);
+    return endpoint != null && endpoint.getConnectTimeout() != null ? endpoint.getConnectTimeout()
+        : connectTimeout;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Gets the read timeout of a host.
+   * 
+   * @param host the host name
+   * @return the host's read timeout in milliseconds, http.readTimeout if not set
+   */
+  public int getReadTimeout(String host) {
+    Endpoint endpoint = getEndpoint(host);
+    return endpoint != null && endpoint.getReadTimeout() != null ? endpoint.getReadTimeout()
+        : readTimeout;
+  }
+
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  public void setEndpoints(List<Endpoint> endpoints) {
+    this.endpoints = endpoints;
+  }
+
+  /**
+   * Gets the settings of a host.
+   * 
+   * @param host the host name
+   * @return the {@link Endpoint} or null if the host has no settings
+   */
+  public Endpoint getEndpoint(String host) {
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.getHost() != null && endpoint.getHost().equalsIgnoreCase(host)) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  public static class Endpoint {
+
+    private String host;
+
+    private Integer connectTimeout;
+
+    private Integer readTimeout;
+
+    public String getHost() {
+      return host;
+    }
+
+    public void setHost(String host) {
+      this.host = host;
+    }
+
+    public Integer getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+      this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getReadTimeout() {
+      return readTimeout;
+    }
+
+    public void setReadTimeout(Integer readTimeout) {
+      this.readTimeout = readTimeout;
+    }
+  }
+}
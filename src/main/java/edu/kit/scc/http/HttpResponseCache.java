@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.http;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of public GET responses, keyed by URL. Requests with credentials are never cached.
+ * Responses are fresh for their Cache-Control max-age or until their Expires date. Stale
+ * responses with an ETag or Last-Modified validator are kept for conditional revalidation. When
+ * full, the least recently used response is evicted.
+ * 
+ * @author benjamin
+ *
+ */
+public class HttpResponseCache {
+
+  private static final Logger log = LoggerFactory.getLogger(HttpResponseCache.class);
+
+  private final int maxSize;
+
+  private final Map<String, Entry> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong revalidations = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a new response cache.
+   * 
+   * @param maxSize the maximum number of cached responses
+   */
+  public HttpResponseCache(int maxSize) {
+    this.maxSize = maxSize;
+    // access ordered, so the eldest entry is the least recently used
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > HttpResponseCache.this.maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Gets a cached response.
+   * 
+   * @param key the request's URL
+   * @return the cached entry, fresh or stale, or null if not cached
+   */
+  Entry get(String key) {
+    Entry entry = cache.get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else if (entry.isFresh()) {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * Caches a response if it is cacheable.
+   * 
+   * @param key the request's URL
+   * @param response the received response
+   * @param result the read response
+   */
+  void put(String key, org.apache.http.HttpResponse response, HttpResponse result) {
+    Header etag = response.getFirstHeader("ETag");
+    Header lastModified = response.getFirstHeader("Last-Modified");
+    long freshness = getFreshness(response);
+    if (freshness < 0 || (freshness == 0 && etag == null && lastModified == null)) {
+      cache.remove(key);
+      return;
+    }
+    cache.put(key, new Entry(result, etag == null ? null : etag.getValue(),
+        lastModified == null ? null : lastModified.getValue(), freshness));
+  }
+
+  /**
+   * Refreshes a cached response after the server answered 304 Not Modified.
+   * 
+   * @param key the request's URL
+   * @param entry the revalidated entry
+   * @param response the 304 response
+   * @return the cached response
+   */
+  HttpResponse revalidate(String key, Entry entry, org.apache.http.HttpResponse response) {
+    revalidations.incrementAndGet();
+    long freshness = getFreshness(response);
+    if (freshness < 0) {
+      cache.remove(key, entry);
+    } else {
+      cache.replace(key, entry, new Entry(entry.response, entry.etag, entry.lastModified,
+          Math.max(freshness, 0)));
+    }
+    return entry.response;
+  }
+
+  /**
+   * Marks a cached response stale, so that it is revalidated on the next request.
+   * 
+   * @param key the request's URL
+   */
+  public void expire(String key) {
+    Entry entry = cache.get(key);
+    if (entry != null) {
+      cache.replace(key, entry, new Entry(entry.response, entry.etag, entry.lastModified, 0));
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * Gets the cache metrics.
+   * 
+   * @return a list of {@link Metric}
+   */
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Long>("http.cache.hits", hits.get()));
+    metrics.add(new Metric<Long>("http.cache.misses", misses.get()));
+    metrics.add(new Metric<Long>("http.cache.revalidations", revalidations.get()));
+    metrics.add(new Metric<Long>("http.cache.evictions", evictions.get()));
+    metrics.add(new Metric<Integer>("http.cache.size", cache.size()));
+    return metrics;
+  }
+
+  // freshness lifetime in milliseconds, -1 if the response must not be stored
+  private static long getFreshness(org.apache.http.HttpResponse response) {
+    for (Header header : response.getHeaders("Cache-Control")) {
+      for (HeaderElement element : header.getElements()) {
+        String name = element.getName().toLowerCase(Locale.ROOT);
+        if (name.equals("no-store")) {
+          return -1;
+        }
+        if (name.equals("no-cache")) {
+          return 0;
+        }
+        if (name.equals("max-age")) {
+          try {
+            return Math.max(Long.parseLong(element.getValue()), 0) * 1000;
+          } catch (NumberFormatException e) {
+            log.debug("Invalid max-age {}", element.getValue());
+            return 0;
+          }
+        }
+      }
+    }
+    Header expires = response.getFirstHeader("Expires");
+    if (expires != null) {
+      Date expiresDate = DateUtils.parseDate(expires.getValue());
+      Header date = response.getFirstHeader("Date");
+      Date now = date == null ? null : DateUtils.parseDate(date.getValue());
+      if (expiresDate != null) {
+        long base = now == null ? System.currentTimeMillis() : now.getTime();
+        return Math.max(expiresDate.getTime() - base, 0);
+      }
+      return 0;
+    }
+    return 0;
+  }
+
+  static final class Entry {
+    private final HttpResponse response;
+    private final String etag;
+    private final String lastModified;
+    private final long expiresAt;
+
+    private Entry(HttpResponse response, String etag, String lastModified, long freshness) {
+      this.response = response;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expiresAt = System.currentTimeMillis() + freshness;
+    }
+
+    boolean isFresh() {
+      return expiresAt > System.currentTimeMillis();
+    }
+
+    HttpResponse getResponse() {
+      return response;
+    }
+
+    void addConditionalHeaders(HttpRequest request) {
+      if (etag != null) {
+        request.setHeader("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        request.setHeader("If-Modified-Since", lastModified);
+      }
+    }
+  }
+}
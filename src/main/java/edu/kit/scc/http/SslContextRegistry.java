@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.http;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Registry of prebuilt SSL contexts and socket factories per trust configuration. Reusing the
+ * contexts lets repeated handshakes to the same host resume the cached TLS session.
+ * 
+ * @author benjamin
+ *
+ */
+public final class SslContextRegistry {
+
+  private static final Logger log = LoggerFactory.getLogger(SslContextRegistry.class);
+
+  private static final String DEFAULT = "default";
+
+  private static final String TRUST_ALL = "trustAll";
+
+  // client session cache size and timeout in seconds
+  private static final int SESSION_CACHE_SIZE = 1000;
+
+  private static final int SESSION_TIMEOUT = 3600;
+
+  private static final ConcurrentMap<String, SSLContext> contexts = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, SSLSocketFactory> socketFactories =
+      new ConcurrentHashMap<>();
+
+  private SslContextRegistry() {}
+
+  /**
+   * Gets the SSL context with the JVM's default trust store.
+   * 
+   * @return a {@link SSLContext} or null if the context could not be initialized
+   */
+  public static SSLContext getDefaultContext() {
+    return contexts.computeIfAbsent(DEFAULT, key -> {
+      try {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        return enableSessionCache(sslContext);
+      } catch (NoSuchAlgorithmException | KeyManagementException e) {
+        log.error("ERROR {}", e.getMessage());
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Gets the SSL context without certificate checks.
+   * 
+   * @return a {@link SSLContext} or null if the context could not be initialized
+   */
+  public static SSLContext getTrustAllContext() {
+    return contexts.computeIfAbsent(TRUST_ALL,
+        key -> enableSessionCache(CustomSslContext.initEmptySslContext()));
+  }
+
+  /**
+   * Gets the SSL context trusting the given certificate.
+   * 
+   * @param cert the X.509 certificate for the context
+   * @return a {@link SSLContext} or null if the context could not be initialized
+   */
+  public static SSLContext getContext(String cert) {
+    return contexts.computeIfAbsent("cert:" + DigestUtils.sha256Hex(cert),
+        key -> enableSessionCache(CustomSslContext.initSslContextWithCertificate(cert)));
+  }
+
+  /**
+   * Gets the socket factory of the SSL context with the JVM's default trust store.
+   * 
+   * @return a {@link SSLSocketFactory}
+   * @throws IllegalStateException if the SSL context could not be initialized
+   */
+  public static SSLSocketFactory getDefaultSocketFactory() {
+    return socketFactories.computeIfAbsent(DEFAULT,
+        key -> getSocketFactory(getDefaultContext(), "default"));
+  }
+
+  /**
+   * Gets the socket factory of the SSL context without certificate checks.
+   * 
+   * @return a {@link SSLSocketFactory}
+   * @throws IllegalStateException if the SSL context could not be initialized
+   */
+  public static SSLSocketFactory getTrustAllSocketFactory() {
+    return socketFactories.computeIfAbsent(TRUST_ALL,
+        key -> getSocketFactory(getTrustAllContext(), "trust all"));
+  }
+
+  /**
+   * Gets the socket factory of the SSL context trusting the given certificate.
+   * 
+   * @param cert the X.509 certificate for the context
+   * @return a {@link SSLSocketFactory}
+   * @throws IllegalStateException if the SSL context could not be initialized
+   */
+  public static SSLSocketFactory getSocketFactory(String cert) {
+    return socketFactories.computeIfAbsent("cert:" + DigestUtils.sha256Hex(cert),
+        key -> getSocketFactory(getContext(cert), "certificate"));
+  }
+
+  // contexts failing to initialize are not cached, so the next call tries again
+  private static SSLSocketFactory getSocketFactory(SSLContext sslContext, String name) {
+    if (sslContext == null) {
+      throw new IllegalStateException("Could not initialize the " + name + " SSL context");
+    }
+    return sslContext.getSocketFactory();
+  }
+
+  private static SSLContext enableSessionCache(SSLContext sslContext) {
+    if (sslContext != null) {
+      SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+      sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+    }
+    return sslContext;
+  }
+}
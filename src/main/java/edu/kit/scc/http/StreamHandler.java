@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Consumes a response body as stream.
+ * 
+ * @author benjamin
+ *
+ * @param <T> the result type
+ */
+@FunctionalInterface
+public interface StreamHandler<T> {
+
+  /**
+   * Handles the response body. The stream is closed after the handler returns.
+   * 
+   * @param in the response body
+   * @return the result
+   * @throws IOException if reading the stream fails
+   */
+  T handle(InputStream in) throws IOException;
+
+  /**
+   * Handles the body of an error response, status 400 and above. Errors are ignored by default.
+   * 
+   * @param statusCode the response's status code
+   * @param in the response body, empty if there is none
+   * @return the result, null by default
+   * @throws IOException if reading the stream fails
+   */
+  default T handleError(int statusCode, InputStream in) throws IOException {
+    return null;
+  }
+}
@@ -202,6 +202,8 @@ public class LdapClient {
    * Generates a non-conflicting group id number.
    * 
    * @return a new int gidNumber
+   * @deprecated scans all groups per call, use RedisClient#getGidNumber(String) once the gidNumbers
+   *             in use are recorded with RedisClient#reserveGidNumbers(java.util.Collection)
    */
   @Deprecated
   public int generateGroupIdNumber() {
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.oidc;
+
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jwk.AssymetricJWK;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Local validation of JWT access tokens against the issuer's cached JSON Web Key Set. Tokens must
+ * be issued for one of the oidc.audience audiences, by default the issuer's client id.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class JwtValidator {
+
+  private static final Logger log = LoggerFactory.getLogger(JwtValidator.class);
+
+  @Value("${oidc.audience}")
+  private String audience;
+
+  @Value("${oidc.clockSkew}")
+  private long clockSkew;
+
+  @Value("${oidc.localValidation}")
+  private boolean localValidation;
+
+  @Autowired
+  private OidcDiscovery discovery;
+
+  private final DefaultJWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+
+  /**
+   * Checks that local validation has an audience to check.
+   * 
+   * @throws IllegalStateException if neither oidc.audience nor oidc.clientid is configured
+   */
+  @PostConstruct
+  public void init() {
+    String clientId = discovery.getDefaultIssuer().getClientId();
+    if (localValidation && audience.isEmpty() && (clientId == null || clientId.isEmpty())) {
+      throw new IllegalStateException("oidc.audience or oidc.clientid required");
+    }
+  }
+
+  /**
+   * Parses the token as signed JWT.
+   * 
+   * @param token the bearer token
+   * @return the {@link SignedJWT} or null if the token is opaque
+   */
+  public SignedJWT parse(String token) {
+    try {
+      return SignedJWT.parse(token);
+    } catch (ParseException ex) {
+      log.debug("Token is not a signed JWT");
+    }
+    return null;
+  }
+
+  /**
+   * Routes the JWT to its issuer by the (not yet verified) iss claim.
+   * 
+   * @param jwt the {@link SignedJWT}
+   * @return the trusted {@link OidcIssuer} or null if the issuer is not trusted
+   */
+  public OidcIssuer getIssuer(SignedJWT jwt) {
+    try {
+      return discovery.getIssuer(jwt.getJWTClaimsSet().getIssuer());
+    } catch (ParseException ex) {
+      log.debug("Invalid JWT claims {}", ex.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Checks if the JWT's signing key is known. Never blocks, unknown keys trigger a background
+   * refresh of the issuer's key set.
+   * 
+   * @param jwt the {@link SignedJWT}
+   * @param issuer the JWT's {@link OidcIssuer}
+   * @return true if the JWT can be verified locally
+   */
+  public boolean canVerify(SignedJWT jwt, OidcIssuer issuer) {
+    return issuer.getKey(jwt.getHeader().getKeyID()) instanceof AssymetricJWK;
+  }
+
+  /**
+   * Validates the JWT's signature, expiration, issuer and audience. JWTs without an accepted
+   * audience are rejected.
+   * 
+   * @param jwt the {@link SignedJWT} to validate
+   * @param issuer the JWT's {@link OidcIssuer}
+   * @return the verified {@link JWTClaimsSet} or null if the JWT is invalid
+   */
+  public JWTClaimsSet validate(SignedJWT jwt, OidcIssuer issuer) {
+    try {
+      JWK jwk = issuer.getKey(jwt.getHeader().getKeyID());
+      if (!(jwk instanceof AssymetricJWK)) {
+        log.warn("No public key found for kid {}", jwt.getHeader().getKeyID());
+        return null;
+      }
+      JWSVerifier verifier = verifierFactory.createJWSVerifier(jwt.getHeader(),
+          ((AssymetricJWK) jwk).toPublicKey());
+      if (!jwt.verify(verifier)) {
+        log.warn("Invalid JWT signature");
+        return null;
+      }
+
+      JWTClaimsSet claims = jwt.getJWTClaimsSet();
+      Date now = new Date();
+      Date exp = claims.getExpirationTime();
+      if (exp == null || exp.getTime() + clockSkew * 1000 < now.getTime()) {
+        log.debug("JWT expired");
+        return null;
+      }
+      Date nbf = claims.getNotBeforeTime();
+      if (nbf != null && nbf.getTime() - clockSkew * 1000 > now.getTime()) {
+        log.debug("JWT not yet valid");
+        return null;
+      }
+      if (!issuer.getIssuer().equals(claims.getIssuer())) {
+        log.debug("JWT issuer {} not trusted", claims.getIssuer());
+        return null;
+      }
+      List<String> tokenAudience =
+          claims.getAudience() == null ? Collections.<String>emptyList() : claims.getAudience();
+      if (Collections.disjoint(tokenAudience, getAudience(issuer))) {
+        log.debug("JWT audience {} not accepted", tokenAudience);
+        return null;
+      }
+      return claims;
+    } catch (Exception ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    return null;
+  }
+
+  // the configured audiences or else the issuer's client id
+  private List<String> getAudience(OidcIssuer issuer) {
+    if (!audience.isEmpty()) {
+      return Arrays.asList(audience.split(","));
+    }
+    if (issuer.getClientId() == null || issuer.getClientId().isEmpty()) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(issuer.getClientId());
+  }
+}
@@ -9,9 +9,182 @@
 
 package edu.kit.scc.oidc;
 
+import edu.kit.scc.http.HttpClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Component;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OIDC client of IdH. Access tokens from the client credentials grant are cached per issuer and
+ * scope, and refreshed ahead of their expiration. Concurrent callers share a single token
+ * request.
+ * 
+ * @author benjamin
+ *
+ */
 @Component
-public class OidcClient {
+public class OidcClient implements PublicMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(OidcClient.class);
+
+  @Value("${oidc.clientToken.refreshBefore}")
+  private long refreshBefore;
+
+  @Autowired
+  private OidcDiscovery discovery;
+
+  @Autowired
+  private HttpClient httpClient;
+
+  private final Map<String, AccessToken> tokens = new ConcurrentHashMap<>();
+
+  private final Map<String, CompletableFuture<AccessToken>> pending = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong tokenRequests = new AtomicLong();
+
+  private final AtomicLong tokenFailures = new AtomicLong();
+
+  /**
+   * Gets an access token of the default issuer.
+   * 
+   * @param scope the requested scope
+   * @return a {@link CompletableFuture} completed with the access token or null on errors
+   */
+  public CompletableFuture<String> getAccessToken(String scope) {
+    return getAccessToken(discovery.getDefaultIssuer(), scope);
+  }
+
+  /**
+   * Gets an access token of the issuer. A cached token is returned while valid; once it is due
+   * for refresh, a new token is requested in the background.
+   * 
+   * @param issuer the {@link OidcIssuer} to request the token from
+   * @param scope the requested scope
+   * @return a {@link CompletableFuture} completed with the access token or null on errors
+   */
+  public CompletableFuture<String> getAccessToken(OidcIssuer issuer, String scope) {
+    String key = issuer.getIssuer() + " " + scope;
+    AccessToken token = tokens.get(key);
+    long now = System.currentTimeMillis();
+    if (token != null && now < token.expiresAt) {
+      hits.incrementAndGet();
+      if (now >= token.refreshAt) {
+        refresh(key, issuer, scope);
+      }
+      return CompletableFuture.completedFuture(token.value);
+    }
+    return refresh(key, issuer, scope)
+        .thenApply(newToken -> newToken == null ? null : newToken.value);
+  }
+
+  /**
+   * Removes a cached access token, e.g. after the resource server rejected it.
+   * 
+   * @param issuer the {@link OidcIssuer} of the token
+   * @param scope the token's scope
+   */
+  public void invalidate(OidcIssuer issuer, String scope) {
+    tokens.remove(issuer.getIssuer() + " " + scope);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getTokenRequests() {
+    return tokenRequests.get();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Long>("oidc.clientToken.hits", hits.get()));
+    metrics.add(new Metric<Long>("oidc.clientToken.requests", tokenRequests.get()));
+    metrics.add(new Metric<Long>("oidc.clientToken.failures", tokenFailures.get()));
+    return metrics;
+  }
+
+  // single-flight, callers arriving while a token request is running share its result
+  private CompletableFuture<AccessToken> refresh(String key, OidcIssuer issuer, String scope) {
+    CompletableFuture<AccessToken> future = new CompletableFuture<>();
+    CompletableFuture<AccessToken> running = pending.putIfAbsent(key, future);
+    if (running != null) {
+      return running;
+    }
+    requestToken(issuer, scope).whenComplete((token, ex) -> {
+      if (token != null) {
+        tokens.put(key, token);
+      } else {
+        tokenFailures.incrementAndGet();
+      }
+      pending.remove(key, future);
+      future.complete(token);
+    });
+    return future;
+  }
+
+  private CompletableFuture<AccessToken> requestToken(OidcIssuer issuer, String scope) {
+    tokenRequests.incrementAndGet();
+    String body;
+    try {
+      body = "grant_type=client_credentials&client_id="
+          + URLEncoder.encode(issuer.getClientId(), "UTF-8") + "&client_secret="
+          + URLEncoder.encode(issuer.getClientSecret(), "UTF-8") + "&scope="
+          + URLEncoder.encode(scope, "UTF-8");
+    } catch (UnsupportedEncodingException | RuntimeException e) {
+      log.error("ERROR {}", e.toString());
+      return CompletableFuture.completedFuture(null);
+    }
+    long requestedAt = System.currentTimeMillis();
+    return httpClient.makeHttpsPostRequestAsync(body, issuer.getTokenEndpoint())
+        .thenApply(response -> {
+          if (response == null) {
+            log.error("Could not get an access token from {}", issuer.getTokenEndpoint());
+            return null;
+          }
+          try {
+            JSONObject json = new JSONObject(response.getResponseString());
+            String accessToken = json.getString("access_token");
+            long expiresIn = json.optLong("expires_in", 0) * 1000;
+            log.debug("Access token for {} expires in {} ms", scope, expiresIn);
+            // refresh refreshBefore seconds ahead, short-lived tokens at half their lifetime
+            long refreshIn = Math.max(expiresIn - refreshBefore * 1000, expiresIn / 2);
+            return new AccessToken(accessToken, requestedAt + refreshIn, requestedAt + expiresIn);
+          } catch (JSONException e) {
+            log.error("ERROR {}", e.getMessage());
+          }
+          return null;
+        });
+  }
+
+  private static final class AccessToken {
+    private final String value;
+    private final long refreshAt;
+    private final long expiresAt;
 
+    private AccessToken(String value, long refreshAt, long expiresAt) {
+      this.value = value;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
+    }
+  }
 }
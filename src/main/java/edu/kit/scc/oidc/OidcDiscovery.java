@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.oidc;
+
+import edu.kit.scc.http.HttpClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Registry of the trusted OIDC issuers. Each issuer discovers and refreshes its own provider
+ * metadata and keys, so a slow issuer does not delay the others.
+ *
+ * @author benjamin
+ *
+ */
+@Component
+public class OidcDiscovery implements PublicMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(OidcDiscovery.class);
+
+  @Value("${oidc.issuer}")
+  private String issuer;
+
+  @Value("${oidc.discovery}")
+  private String discoveryUri;
+
+  @Value("${oidc.jwks}")
+  private String jwksUri;
+
+  @Value("${oidc.userinfo}")
+  private String userInfo;
+
+  @Value("${oidc.tokeninfo}")
+  private String tokenInfo;
+
+  @Value("${oidc.token}")
+  private String token;
+
+  @Value("${oidc.clientid}")
+  private String clientId;
+
+  @Value("${oidc.clientsecret}")
+  private String clientSecret;
+
+  @Value("${oidc.opaqueTokens}")
+  private boolean opaqueTokens;
+
+  @Value("${oidc.refreshInterval}")
+  private long refreshInterval;
+
+  @Value("${oidc.minRefreshInterval}")
+  private long minRefreshInterval;
+
+  @Autowired
+  private OidcProperties oidcProperties;
+
+  @Autowired
+  private HttpClient httpClient;
+
+  @Autowired
+  private ResourceLoader resourceLoader;
+
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  private List<OidcIssuer> issuers;
+
+  /**
+   * Creates the default issuer from the oidc.* properties and the additional oidc.issuers[n].*
+   * issuers, and starts their background refresh. The issuers' metrics are named by their
+   * configuration position, oidc.issuer.default.* and oidc.issuer.n.* for oidc.issuers[n].
+   */
+  @PostConstruct
+  public void init() {
+    OidcProperties.Issuer defaultIssuer = new OidcProperties.Issuer();
+    defaultIssuer.setIssuer(issuer);
+    defaultIssuer.setDiscovery(discoveryUri);
+    defaultIssuer.setJwks(jwksUri);
+    defaultIssuer.setUserinfo(userInfo);
+    defaultIssuer.setTokeninfo(tokenInfo);
+    defaultIssuer.setToken(token);
+    defaultIssuer.setClientid(clientId);
+    defaultIssuer.setClientsecret(clientSecret);
+    defaultIssuer.setOpaqueTokens(opaqueTokens);
+
+    List<OidcIssuer> trustedIssuers = new ArrayList<>();
+    trustedIssuers.add(createIssuer(defaultIssuer, "default"));
+    List<OidcProperties.Issuer> additionalIssuers = oidcProperties.getIssuers();
+    for (int i = 0; i < additionalIssuers.size(); i++) {
+      trustedIssuers.add(createIssuer(additionalIssuers.get(i), String.valueOf(i)));
+    }
+    issuers = Collections.unmodifiableList(trustedIssuers);
+
+    for (OidcIssuer oidcIssuer : issuers) {
+      log.debug("Trusted issuer {}", oidcIssuer);
+      oidcIssuer.start(refreshInterval);
+    }
+  }
+
+  /**
+   * Stops the background refresh of all issuers.
+   */
+  @PreDestroy
+  public void cleanUp() {
+    for (OidcIssuer oidcIssuer : issuers) {
+      oidcIssuer.stop();
+    }
+  }
+
+  /**
+   * Gets the trusted issuer for the given iss claim.
+   *
+   * @param iss the iss claim
+   * @return the {@link OidcIssuer} or null if the issuer is not trusted
+   */
+  public OidcIssuer getIssuer(String iss) {
+    if (iss != null) {
+      for (OidcIssuer oidcIssuer : issuers) {
+        if (iss.equals(oidcIssuer.getIssuer())) {
+          return oidcIssuer;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the issuer configured by the plain oidc.* properties.
+   *
+   * @return the default {@link OidcIssuer}
+   */
+  public OidcIssuer getDefaultIssuer() {
+    return issuers.get(0);
+  }
+
+  public List<OidcIssuer> getIssuers() {
+    return issuers;
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    for (OidcIssuer oidcIssuer : issuers) {
+      metrics.addAll(oidcIssuer.metrics());
+    }
+    return metrics;
+  }
+
+  private OidcIssuer createIssuer(OidcProperties.Issuer properties, String name) {
+    OidcIssuer oidcIssuer = new OidcIssuer(properties, minRefreshInterval, httpClient,
+        resourceLoader, taskScheduler);
+    oidcIssuer.setName(name);
+    return oidcIssuer;
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.oidc;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+
+import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.http.HttpResponse;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A trusted OIDC issuer with its own provider metadata, JSON Web Key Set cache and metrics. The
+ * metadata and keys are refreshed in the background, request threads never wait for a network
+ * fetch.
+ * 
+ * @author benjamin
+ *
+ */
+public class OidcIssuer {
+
+  private static final Logger log = LoggerFactory.getLogger(OidcIssuer.class);
+
+  private final String issuer;
+
+  private volatile String name;
+
+  private volatile String jwksUri;
+
+  private final String userInfo;
+
+  private final String tokenInfo;
+
+  private final String token;
+
+  private final String clientId;
+
+  private final String clientSecret;
+
+  private final boolean opaqueTokens;
+
+  private final HttpClient httpClient;
+
+  private final ResourceLoader resourceLoader;
+
+  private final TaskScheduler taskScheduler;
+
+  private final long minRefreshInterval;
+
+  private volatile String discoveryUri;
+
+  private volatile JSONObject metadata = new JSONObject();
+
+  private volatile JWKSet jwkSet;
+
+  private volatile long lastRefresh;
+
+  private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+  private ScheduledFuture<?> refreshTask;
+
+  private final AtomicLong localValidations = new AtomicLong();
+
+  private final AtomicLong remoteValidations = new AtomicLong();
+
+  private final AtomicLong rejections = new AtomicLong();
+
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  /**
+   * Creates a new OIDC issuer.
+   * 
+   * @param properties the issuer's configuration
+   * @param minRefreshInterval the minimum interval between on-demand refreshes in seconds
+   * @param httpClient the {@link HttpClient} for fetching metadata and keys
+   * @param resourceLoader the {@link ResourceLoader} for local metadata and keys
+   * @param taskScheduler the {@link TaskScheduler} for background refreshes
+   */
+  public OidcIssuer(OidcProperties.Issuer properties, long minRefreshInterval,
+      HttpClient httpClient, ResourceLoader resourceLoader, TaskScheduler taskScheduler) {
+    this.issuer = properties.getIssuer();
+    this.name = issuer.replaceAll("[^A-Za-z0-9]+", "_");
+    this.jwksUri = properties.getJwks();
+    this.userInfo = properties.getUserinfo();
+    this.tokenInfo = properties.getTokeninfo();
+    this.token = properties.getToken();
+    this.clientId = properties.getClientid();
+    this.clientSecret = properties.getClientsecret();
+    this.opaqueTokens = properties.isOpaqueTokens();
+    this.minRefreshInterval = minRefreshInterval;
+    this.httpClient = httpClient;
+    this.resourceLoader = resourceLoader;
+    this.taskScheduler = taskScheduler;
+
+    if (properties.getDiscovery() == null || properties.getDiscovery().isEmpty()) {
+      discoveryUri = (issuer.endsWith("/") ? issuer : issuer + "/")
+          + ".well-known/openid-configuration";
+    } else {
+      discoveryUri = properties.getDiscovery();
+    }
+  }
+
+  /**
+   * Starts refreshing the provider metadata and keys in the background.
+   * 
+   * @param refreshInterval the refresh interval in seconds
+   */
+  public void start(long refreshInterval) {
+    refreshTask = taskScheduler.scheduleWithFixedDelay(this::refresh, refreshInterval * 1000);
+  }
+
+  /**
+   * Stops the background refresh.
+   */
+  public void stop() {
+    if (refreshTask != null) {
+      refreshTask.cancel(true);
+    }
+  }
+
+  /**
+   * Reloads the provider metadata and the JSON Web Key Set.
+   */
+  public void refresh() {
+    lastRefresh = System.currentTimeMillis();
+    try {
+      String configuration = load(discoveryUri, true);
+      if (configuration != null) {
+        JSONObject discovered = new JSONObject(configuration);
+        if (!isTrusted(discovered)) {
+          refreshFailures.incrementAndGet();
+          return;
+        }
+        metadata = discovered;
+      }
+      String keys = load(getJwksUri(), !metadata.has("jwks_uri"));
+      if (keys != null) {
+        jwkSet = JWKSet.parse(keys);
+        log.debug("Loaded {} keys from {}", jwkSet.getKeys().size(), getJwksUri());
+        return;
+      }
+    } catch (Exception ex) {
+      log.error("ERROR {}", ex.toString());
+    }
+    refreshFailures.incrementAndGet();
+  }
+
+  /**
+   * Schedules a refresh, at most one every minimum refresh interval.
+   */
+  public void requestRefresh() {
+    if (refreshPending.compareAndSet(false, true)) {
+      long refreshAt =
+          Math.max(System.currentTimeMillis(), lastRefresh + minRefreshInterval * 1000);
+      log.debug("Refresh of {} scheduled at {}", issuer, new Date(refreshAt));
+      taskScheduler.schedule(() -> {
+        try {
+          // the keys may have rotated before the cached key set expired
+          httpClient.expireCachedResponse(getJwksUri());
+          refresh();
+        } finally {
+          refreshPending.set(false);
+        }
+      }, new Date(refreshAt));
+    }
+  }
+
+  /**
+   * Gets a key from the cached JSON Web Key Set. Unknown keys trigger a rate-limited refresh.
+   * 
+   * @param kid the key id, null for the first key
+   * @return the {@link JWK} or null if not (yet) known
+   */
+  public JWK getKey(String kid) {
+    JWKSet keys = jwkSet;
+    JWK key = null;
+    if (keys != null) {
+      if (kid != null) {
+        key = keys.getKeyByKeyId(kid);
+      } else if (!keys.getKeys().isEmpty()) {
+        key = keys.getKeys().get(0);
+      }
+    }
+    if (key == null) {
+      log.debug("Unknown key {} of {}", kid, issuer);
+      requestRefresh();
+    }
+    return key;
+  }
+
+  public String getIssuer() {
+    return issuer;
+  }
+
+  public String getJwksUri() {
+    return metadata.optString("jwks_uri", jwksUri);
+  }
+
+  public String getUserInfoEndpoint() {
+    return metadata.optString("userinfo_endpoint", userInfo);
+  }
+
+  public String getIntrospectionEndpoint() {
+    return metadata.optString("introspection_endpoint", tokenInfo);
+  }
+
+  public String getTokenEndpoint() {
+    return metadata.optString("token_endpoint", token);
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public String getClientSecret() {
+    return clientSecret;
+  }
+
+  public boolean isOpaqueTokens() {
+    return opaqueTokens;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public void setDiscoveryUri(String discoveryUri) {
+    this.discoveryUri = discoveryUri;
+  }
+
+  public void setJwksUri(String jwksUri) {
+    this.jwksUri = jwksUri;
+  }
+
+  public void countLocalValidation() {
+    localValidations.incrementAndGet();
+  }
+
+  public void countRemoteValidation() {
+    remoteValidations.incrementAndGet();
+  }
+
+  public void countRejection() {
+    rejections.incrementAndGet();
+  }
+
+  /**
+   * Gets the issuer's metrics, prefixed with oidc.issuer and the issuer's name.
+   * 
+   * @return a list of {@link Metric}
+   */
+  public List<Metric<?>> metrics() {
+    String prefix = "oidc.issuer." + name;
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Long>(prefix + ".validations.local", localValidations.get()));
+    metrics.add(new Metric<Long>(prefix + ".validations.remote", remoteValidations.get()));
+    metrics.add(new Metric<Long>(prefix + ".rejections", rejections.get()));
+    metrics.add(new Metric<Long>(prefix + ".refresh.failures", refreshFailures.get()));
+    JWKSet keys = jwkSet;
+    metrics.add(new Metric<Integer>(prefix + ".keys", keys == null ? 0 : keys.getKeys().size()));
+    return metrics;
+  }
+
+  // the provider must identify as the configured issuer and publish its keys via https
+  private boolean isTrusted(JSONObject discovered) {
+    if (!issuer.equals(discovered.optString("issuer", null))) {
+      log.error("Metadata of {} rejected, issuer {}", issuer, discovered.opt("issuer"));
+      return false;
+    }
+    String discoveredJwksUri = discovered.optString("jwks_uri", null);
+    if (discoveredJwksUri != null && !discoveredJwksUri.startsWith("https:")) {
+      log.error("Metadata of {} rejected, jwks_uri {}", issuer, discoveredJwksUri);
+      return false;
+    }
+    return true;
+  }
+
+  private String load(String location, boolean configured) throws Exception {
+    if (location == null) {
+      return null;
+    }
+    if (!configured && !location.startsWith("https:")) {
+      log.error("Refused to load discovered location {}", location);
+      return null;
+    }
+    if (location.startsWith("https:") || location.startsWith("http:")) {
+      // signing keys must only come from the authenticated provider
+      HttpResponse response = httpClient.makeCachedGetRequest(location);
+      if (response != null && response.getStatusCode() == HttpStatus.OK.value()) {
+        return response.getResponseString();
+      }
+    } else {
+      // configured local stand-in provider, e.g. file: or classpath: locations
+      Resource resource = resourceLoader.getResource(location);
+      try (InputStream in = resource.getInputStream()) {
+        return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+      }
+    }
+    log.error("Could not load {}", location);
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "OidcIssuer [issuer=" + issuer + ", discoveryUri=" + discoveryUri + "]";
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.oidc;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Additional trusted OIDC issuers, configured as oidc.issuers[n].*. The issuer configured by the
+ * plain oidc.* properties is always trusted.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "oidc")
+public class OidcProperties {
+
+  private List<Issuer> issuers = new ArrayList<>();
+
+  public List<Issuer> getIssuers() {
+    return issuers;
+  }
+
+  public void setIssuers(List<Issuer> issuers) {
+    this.issuers = issuers;
+  }
+
+  public static class Issuer {
+
+    private String issuer;
+
+    private String discovery;
+
+    private String jwks;
+
+    private String userinfo;
+
+    private String tokeninfo;
+
+    private String token;
+
+    private String clientid;
+
+    private String clientsecret;
+
+    private boolean opaqueTokens;
+
+    public String getIssuer() {
+      return issuer;
+    }
+
+    public void setIssuer(String issuer) {
+      this.issuer = issuer;
+    }
+
+    public String getDiscovery() {
+      return discovery;
+    }
+
+    public void setDiscovery(String discovery) {
+      this.discovery = discovery;
+    }
+
+    public String getJwks() {
+      return jwks;
+    }
+
+    public void setJwks(String jwks) {
+      this.jwks = jwks;
+    }
+
+    public String getUserinfo() {
+      return userinfo;
+    }
+
+    public void setUserinfo(String userinfo) {
+      this.userinfo = userinfo;
+    }
+
+    public String getTokeninfo() {
+      return tokeninfo;
+    }
+
+    public void setTokeninfo(String tokeninfo) {
+      this.tokeninfo = tokeninfo;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    public void setToken(String token) {
+      this.token = token;
+    }
+
+    public String getClientid() {
+      return clientid;
+    }
+
+    public void setClientid(String clientid) {
+      this.clientid = clientid;
+    }
+
+    public String getClientsecret() {
+      return clientsecret;
+    }
+
+    public void setClientsecret(String clientsecret) {
+      this.clientsecret = clientsecret;
+    }
+
+    public boolean isOpaqueTokens() {
+      return opaqueTokens;
+    }
+
+    public void setOpaqueTokens(boolean opaqueTokens) {
+      this.opaqueTokens = opaqueTokens;
+    }
+  }
+}
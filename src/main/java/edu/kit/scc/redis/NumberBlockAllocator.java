@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hands out the numbers of a range from contiguous blocks leased from redis. Numbers of the
+ * current block are allocated locally, the next block is leased in the background before the
+ * current one runs out. Unused numbers are returned to redis on {@link #release()} and leased
+ * again by the next node.
+ * 
+ * @author benjamin
+ *
+ */
+public class NumberBlockAllocator {
+
+  private static final Logger log = LoggerFactory.getLogger(NumberBlockAllocator.class);
+
+  // milliseconds to wait for a pending lease on release
+  private static final long RELEASE_TIMEOUT = 5000;
+
+  private final StringRedisTemplate template;
+
+  private final TaskScheduler taskScheduler;
+
+  private final String counterKey;
+
+  private final String freeKey;
+
+  private final String start;
+
+  private final String end;
+
+  private final long blockSize;
+
+  @SuppressWarnings("rawtypes")
+  private final DefaultRedisScript<List> leaseBlockScript = new DefaultRedisScript<>();
+
+  // numbers taken from a block but not handed out
+  private final Queue<Long> returned = new ConcurrentLinkedQueue<>();
+
+  private final AtomicLong leases = new AtomicLong();
+
+  // allocations share the read lock, release takes the write lock
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private boolean released;
+
+  private volatile Block current;
+
+  private CompletableFuture<Block> prefetched;
+
+  private static class Block {
+    final long to;
+    final long prefetchAt;
+    final AtomicLong next;
+
+    Block(long from, long to, long prefetchAt) {
+      this.to = to;
+      this.prefetchAt = Math.max(from, prefetchAt);
+      this.next = new AtomicLong(from);
+    }
+  }
+
+  /**
+   * Creates an allocator for a number range.
+   * 
+   * @param template the {@link StringRedisTemplate}
+   * @param taskScheduler the {@link TaskScheduler} for background leases
+   * @param counterKey the redis key of the range's counter, holding the last leased number
+   * @param start the range start, the first number handed out is start + 1
+   * @param end the range end
+   * @param blockSize the numbers per leased block
+   */
+  public NumberBlockAllocator(StringRedisTemplate template, TaskScheduler taskScheduler,
+      String counterKey, String start, String end, long blockSize) {
+    this.template = template;
+    this.taskScheduler = taskScheduler;
+    this.counterKey = counterKey;
+    this.freeKey = counterKey + ":free";
+    this.start = start;
+    this.end = end;
+    this.blockSize = blockSize;
+
+    leaseBlockScript.setScriptSource(
+        new ResourceScriptSource(new ClassPathResource("redis/lease-block.lua")));
+    leaseBlockScript.setResultType(List.class);
+  }
+
+  /**
+   * Allocates the next free number.
+   * 
+   * @return the number
+   * @throws NumberRangeExhaustedException if the range has no block left to lease
+   * @throws org.springframework.dao.DataAccessException if redis can not be reached
+   * @throws IllegalStateException if the allocator was released
+   */
+  public long allocate() {
+    lock.readLock().lock();
+    try {
+      if (released) {
+        throw new IllegalStateException("Allocator of " + counterKey + " released");
+      }
+      Long number = returned.poll();
+      if (number != null) {
+        return number;
+      }
+      while (true) {
+        Block block = current;
+        if (block != null) {
+          long next = block.next.getAndIncrement();
+          if (next <= block.to) {
+            if (next == block.prefetchAt) {
+              prefetch();
+            }
+            return next;
+          }
+        }
+        nextBlock(block);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gives back a number that was allocated but not used.
+   * 
+   * @param number the number
+   */
+  public void free(long number) {
+    returned.add(number);
+  }
+
+  /**
+   * Returns the unused numbers of the current and the prefetched block to redis. Allocations
+   * fail afterwards.
+   */
+  public void release() {
+    lock.writeLock().lock();
+    try {
+      released = true;
+      returnBlocks();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private synchronized void returnBlocks() {
+    List<String> blocks = new ArrayList<>();
+    Block block = current;
+    current = null;
+    if (block != null) {
+      long next = block.next.getAndSet(block.to + 1);
+      if (next <= block.to) {
+        blocks.add(next + "-" + block.to);
+      }
+    }
+    if (prefetched != null) {
+      try {
+        block = prefetched.get(RELEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (block != null) {
+          blocks.add(block.next.get() + "-" + block.to);
+        }
+      } catch (InterruptedException | ExecutionException | TimeoutException e) {
+        log.error("ERROR {}", e.getMessage());
+      }
+      prefetched = null;
+    }
+    for (Long number = returned.poll(); number != null; number = returned.poll()) {
+      blocks.add(number + "-" + number);
+    }
+    if (!blocks.isEmpty()) {
+      try {
+        template.opsForList().rightPushAll(freeKey, blocks.toArray(new String[blocks.size()]));
+        log.debug("Returned {} to {}", blocks, freeKey);
+      } catch (RuntimeException e) {
+        log.error("Can not return {} to {}: {}", blocks, freeKey, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Gets the number of leased blocks.
+   * 
+   * @return the number of leases
+   */
+  public long getLeases() {
+    return leases.get();
+  }
+
+  private synchronized void nextBlock(Block exhausted) {
+    if (current != exhausted) {
+      // switched by another thread
+      return;
+    }
+    Block block = null;
+    if (prefetched != null) {
+      try {
+        block = prefetched.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // leased again below, failing with the current error
+        log.error("ERROR {}", e.getCause().getMessage());
+      }
+      prefetched = null;
+    }
+    if (block == null) {
+      block = lease();
+    }
+    if (block == null) {
+      log.error("Can not lease a block of {}, maximum number reached", counterKey);
+      throw new NumberRangeExhaustedException(counterKey);
+    }
+    current = block;
+  }
+
+  private synchronized void prefetch() {
+    if (prefetched == null) {
+      CompletableFuture<Block> future = new CompletableFuture<>();
+      prefetched = future;
+      taskScheduler.schedule(() -> {
+        try {
+          future.complete(lease());
+        } catch (RuntimeException e) {
+          future.completeExceptionally(e);
+        }
+      }, new Date());
+    }
+  }
+
+  // returns null only if the range is exhausted, redis errors propagate
+  private Block lease() {
+    List<?> block = template.execute(leaseBlockScript, Arrays.asList(counterKey, freeKey), start,
+        end, String.valueOf(blockSize));
+    if (block == null || block.size() < 2) {
+      return null;
+    }
+    long from = Long.valueOf(String.valueOf(block.get(0)));
+    long to = Long.valueOf(String.valueOf(block.get(1)));
+    leases.incrementAndGet();
+    log.debug("Leased {} {}-{}", counterKey, from, to);
+    return new Block(from, to, to - blockSize / 4);
+  }
+}
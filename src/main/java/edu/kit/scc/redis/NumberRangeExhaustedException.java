@@ -0,0 +1,25 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.redis;
+
+/**
+ * Thrown when all numbers of a configured uidNumber or gidNumber range are allocated.
+ * 
+ * @author benjamin
+ *
+ */
+public class NumberRangeExhaustedException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public NumberRangeExhaustedException(String range) {
+    super("All " + range + " numbers are allocated");
+  }
+}
@@ -9,61 +9,272 @@
 
 package edu.kit.scc.redis;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 @Component
 public class RedisClient {
 
   private static final Logger log = LoggerFactory.getLogger(RedisClient.class);
 
+  // prefix and fields of the compact identity hashes: u:<H(externalId)> holds the user's id,
+  // u:<H(id)> the uidNumber and home directory
+  private static final String IDENTITY = "u:";
+
+  private static final String ID = "id";
+
+  private static final String UID_NUMBER = "uid";
+
+  private static final String HOME_DIRECTORY = "home";
+
+  // bytes of the SHA-256 digest used in identity keys
+  private static final int DIGEST_LENGTH = 16;
+
+  // script flag to read the legacy string keys first and write them too
+  private static final String LEGACY = "legacy";
+
   @Value("${ldap.uidNumber.start}")
   String minUidNumber;
 
   @Value("${ldap.uidNumber.end}")
   String maxUidNumber;
 
+  @Value("${ldap.uidNumber.blockSize}")
+  long uidNumberBlockSize;
+
   @Value("${ldap.gidNumber.start}")
   String minGidNumber;
 
   @Value("${ldap.gidNumber.end}")
   String maxGidNumber;
 
+  @Value("${ldap.gidNumber.blockSize}")
+  long gidNumberBlockSize;
+
+  @Value("${redis.identityHashes}")
+  boolean identityHashes;
+
+  @Value("${redis.legacyKeys}")
+  boolean legacyKeys;
+
+  @Value("${redis.migrateIdentities}")
+  boolean migrateIdentities;
+
   @Autowired
   private StringRedisTemplate template;
 
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  private final DefaultRedisScript<Long> allocateNumberScript = new DefaultRedisScript<>();
+
+  private final DefaultRedisScript<String> assignScript = new DefaultRedisScript<>();
+
+  private final DefaultRedisScript<Long> migrateKeyScript = new DefaultRedisScript<>();
+
+  private final DefaultRedisScript<String> lookupScript = new DefaultRedisScript<>();
+
+  private NumberBlockAllocator uidNumberAllocator;
+
+  private NumberBlockAllocator gidNumberAllocator;
 
   /**
-   * Gets the user's uidNumber.
+   * Loads the server-side scripts and sets up block leasing of uid and gidNumbers if configured.
+   * Starts the migration to identity hashes in the background if configured.
+   */
+  @PostConstruct
+  public void init() {
+    allocateNumberScript.setScriptSource(
+        new ResourceScriptSource(new ClassPathResource("redis/allocate-number.lua")));
+    allocateNumberScript.setResultType(Long.class);
+    assignScript.setScriptSource(
+        new ResourceScriptSource(new ClassPathResource("redis/assign.lua")));
+    assignScript.setResultType(String.class);
+    migrateKeyScript.setScriptSource(
+        new ResourceScriptSource(new ClassPathResource("redis/migrate-key.lua")));
+    migrateKeyScript.setResultType(Long.class);
+    lookupScript.setScriptSource(
+        new ResourceScriptSource(new ClassPathResource("redis/lookup.lua")));
+    lookupScript.setResultType(String.class);
+
+    if (uidNumberBlockSize > 0) {
+      uidNumberAllocator = new NumberBlockAllocator(template, taskScheduler, "uidNumber",
+          minUidNumber, maxUidNumber, uidNumberBlockSize);
+    }
+    if (gidNumberBlockSize > 0) {
+      gidNumberAllocator = new NumberBlockAllocator(template, taskScheduler, "gidNumber",
+          minGidNumber, maxGidNumber, gidNumberBlockSize);
+    }
+    if (identityHashes && migrateIdentities) {
+      taskScheduler.schedule(this::migrateIdentities, new Date());
+    }
+  }
+
+  /**
+   * Returns the unused numbers of leased blocks.
+   */
+  @PreDestroy
+  public void cleanUp() {
+    if (uidNumberAllocator != null) {
+      uidNumberAllocator.release();
+    }
+    if (gidNumberAllocator != null) {
+      gidNumberAllocator.release();
+    }
+  }
+
+  /**
+   * Gets the user's uidNumber, allocating the next free one of the uidNumber range for new users.
+   * The lookup and allocation run atomically in one round trip. With block leasing, a new user's
+   * number is taken from this node's block and only the mapping is stored in redis.
    * 
    * @param id the user's id
    * @return the uidNumber
+   * @throws NumberRangeExhaustedException if the user has none and the range is exhausted
    */
   public String getUidNumber(String id) {
+    if (identityHashes) {
+      return getNumber(identityKey(id), UID_NUMBER, "user:" + id + ":uidNumber",
+          uidNumberAllocator, "uidNumber", minUidNumber, maxUidNumber);
+    }
+    return getNumber("user:" + id + ":uidNumber", null, null, uidNumberAllocator, "uidNumber",
+        minUidNumber, maxUidNumber);
+  }
 
-    String uidNumber = template.opsForValue().get("user:" + id + ":uidNumber");
+  /**
+   * Gets the group's gidNumber, allocating the next free one of the gidNumber range for new
+   * groups. Like {@link #getUidNumber(String)} this takes one round trip and no directory scan.
+   * 
+   * @param groupKey the group's key, e.g. its SCIM id
+   * @return the gidNumber
+   * @throws NumberRangeExhaustedException if the group has none and the range is exhausted
+   */
+  public String getGidNumber(String groupKey) {
+    return getNumber("group:" + groupKey + ":gidNumber", null, null, gidNumberAllocator,
+        "gidNumber", minGidNumber, maxGidNumber);
+  }
 
-    // create a new uid number
-    if (uidNumber == null) {
-      boolean counterInit = template.opsForValue().setIfAbsent("uidNumber", minUidNumber);
-      if (counterInit) {
-        log.debug("Redis uidNumber counter initialized");
+  /**
+   * Records gidNumbers assigned outside of redis, e.g. to existing LDAP groups, which are then
+   * skipped by {@link #getGidNumber(String)}. Numbers outside the gidNumber range are ignored.
+   * 
+   * @param gidNumbers the gidNumbers in use
+   */
+  public void reserveGidNumbers(Collection<String> gidNumbers) {
+    long start = Long.parseLong(minGidNumber.trim());
+    long end = Long.parseLong(maxGidNumber.trim());
+    List<String> reserved = new ArrayList<>();
+    for (String gidNumber : gidNumbers) {
+      if (gidNumber == null) {
+        continue;
       }
-      Long newUidNumber = template.opsForValue().increment("uidNumber", 1);
-      // check if max user id number reached
-      if (newUidNumber <= Long.valueOf(maxUidNumber)) {
-        template.opsForValue().set("user:" + id + ":uidNumber", newUidNumber.toString());
-      } else {
-        log.error("Can not create user, maximum uid number reached");
+      try {
+        long number = Long.parseLong(gidNumber.trim());
+        if (number > start && number <= end) {
+          reserved.add(String.valueOf(number));
+        }
+      } catch (NumberFormatException e) {
+        log.warn("Invalid gidNumber {}", gidNumber);
+      }
+    }
+    if (!reserved.isEmpty()) {
+      template.opsForSet().add(reservedKey("gidNumber"),
+          reserved.toArray(new String[reserved.size()]));
+      log.debug("Reserved {} gidNumbers", reserved.size());
+    }
+  }
+
+  // the set of numbers of a range in use outside redis
+  private static String reservedKey(String counterKey) {
+    return counterKey + ":reserved";
+  }
+
+  // maps key, or the field of the hash key, to a number, reading the legacy key if not yet mapped
+  private String getNumber(String key, String field, String legacyKey,
+      NumberBlockAllocator allocator, String counterKey, String start, String end) {
+    if (allocator != null) {
+      // only take a number from the block for keys not yet mapped
+      String existing = lookup(key, field, legacyKey);
+      if (existing != null) {
+        return existing;
+      }
+      long next = allocator.allocate();
+      // numbers in use outside redis are skipped, not freed
+      while (template.opsForSet().isMember(reservedKey(counterKey), String.valueOf(next))) {
+        next = allocator.allocate();
       }
+      String allocated = String.valueOf(next);
+      String number = assign(key, field, legacyKey, allocated);
+      if (!number.equals(allocated)) {
+        // mapped concurrently
+        allocator.free(Long.valueOf(allocated));
+      }
+      return number;
+    }
+    List<String> keys = new ArrayList<>(Arrays.asList(key, counterKey, reservedKey(counterKey)));
+    List<String> args = new ArrayList<>(Arrays.asList(start, end));
+    addIdentityArgs(keys, args, field, legacyKey);
+    Long number = template.execute(allocateNumberScript, keys, args.toArray());
+    if (number < 0) {
+      log.error("Can not allocate {}, maximum number reached", counterKey);
+      throw new NumberRangeExhaustedException(counterKey);
+    }
+    return number.toString();
+  }
+
+  // reads key, or the field of the hash key, and the legacy key in one round trip
+  private String lookup(String key, String field, String legacyKey) {
+    List<String> keys = new ArrayList<>(Arrays.asList(key));
+    List<String> args = new ArrayList<>();
+    addIdentityArgs(keys, args, field, legacyKey);
+    return template.execute(lookupScript, keys, args.toArray());
+  }
+
+  // maps key, or the field of the hash key, to the value unless already mapped
+  private String assign(String key, String field, String legacyKey, String value) {
+    List<String> keys = new ArrayList<>(Arrays.asList(key));
+    List<String> args = new ArrayList<>(Arrays.asList(value));
+    addIdentityArgs(keys, args, field, legacyKey);
+    return template.execute(assignScript, keys, args.toArray());
+  }
+
+  private void addIdentityArgs(List<String> keys, List<String> args, String field,
+      String legacyKey) {
+    if (field != null) {
+      keys.add(legacyKey);
+      args.add(field);
+      args.add(legacyKeys ? LEGACY : "");
     }
-    return template.opsForValue().get("user:" + id + ":uidNumber");
   }
 
   /**
@@ -73,6 +284,9 @@ public class RedisClient {
    * @return the homeDirectory
    */
   public String getUserHome(String id) {
+    if (identityHashes) {
+      return lookup(identityKey(id), HOME_DIRECTORY, "user:" + id + ":homeDirectory");
+    }
     return template.opsForValue().get("user:" + id + ":homeDirectory");
   }
 
@@ -84,6 +298,15 @@ public class RedisClient {
    */
   public String createUser(String externalId) {
     String id = UUID.randomUUID().toString();
+    if (identityHashes) {
+      String userId = assign(identityKey(externalId), ID, "user:" + externalId, id);
+      if (userId.equals(id)) {
+        log.debug("User {} created with id {}", externalId, id);
+      } else {
+        log.warn("User {} already exists", externalId);
+      }
+      return userId;
+    }
     boolean userCreated = template.opsForValue().setIfAbsent("user:" + externalId, id);
     if (userCreated) {
       log.debug("User {} created with id {}", externalId, id);
@@ -100,7 +323,12 @@ public class RedisClient {
    * @param uidNumber the uidNumber
    */
   public void setUidNumber(String id, String uidNumber) {
-    template.opsForValue().set("user:" + id + ":uidNumber", uidNumber);
+    if (identityHashes) {
+      template.opsForHash().put(identityKey(id), UID_NUMBER, uidNumber);
+    }
+    if (!identityHashes || legacyKeys) {
+      template.opsForValue().set("user:" + id + ":uidNumber", uidNumber);
+    }
   }
 
   /**
@@ -110,6 +338,219 @@ public class RedisClient {
    * @param homeDirectory the home directory
    */
   public void setUserHome(String id, String homeDirectory) {
-    template.opsForValue().set("user:" + id + ":homeDirectory", homeDirectory);
+    if (identityHashes) {
+      template.opsForHash().put(identityKey(id), HOME_DIRECTORY, homeDirectory);
+    }
+    if (!identityHashes || legacyKeys) {
+      template.opsForValue().set("user:" + id + ":homeDirectory", homeDirectory);
+    }
+  }
+
+  /**
+   * Gets the uidNumbers and home directories of several users in a constant number of round
+   * trips. Unlike {@link #getUidNumber(String)} this does not allocate missing uidNumbers.
+   * 
+   * @param ids the users' ids
+   * @return the {@link UserState} by id, with null values for missing entries
+   */
+  public Map<String, UserState> getUserStates(List<String> ids) {
+    Map<String, UserState> states = new LinkedHashMap<>();
+    for (String id : ids) {
+      states.put(id, new UserState());
+    }
+    // the legacy string keys are authoritative while they are written
+    if (!identityHashes || legacyKeys) {
+      readLegacyStates(states, ids);
+    }
+    if (identityHashes) {
+      List<String> missing = getIncomplete(states);
+      if (!missing.isEmpty()) {
+        readHashStates(states, missing);
+      }
+      if (!legacyKeys) {
+        // not yet migrated identities
+        missing = getIncomplete(states);
+        if (!missing.isEmpty()) {
+          readLegacyStates(states, missing);
+        }
+      }
+    }
+    return states;
+  }
+
+  private void readLegacyStates(Map<String, UserState> states, List<String> ids) {
+    List<String> keys = new ArrayList<>();
+    for (String id : ids) {
+      keys.add("user:" + id + ":uidNumber");
+      keys.add("user:" + id + ":homeDirectory");
+    }
+    List<String> values = template.opsForValue().multiGet(keys);
+    for (int i = 0; i < ids.size(); i++) {
+      fillState(states.get(ids.get(i)), values.get(2 * i), values.get(2 * i + 1));
+    }
+  }
+
+  private void readHashStates(Map<String, UserState> states, List<String> ids) {
+    List<Object> values = template.executePipelined((RedisCallback<Object>) connection -> {
+      StringRedisConnection stringConnection = (StringRedisConnection) connection;
+      for (String id : ids) {
+        stringConnection.hMGet(identityKey(id), UID_NUMBER, HOME_DIRECTORY);
+      }
+      return null;
+    });
+    for (int i = 0; i < ids.size(); i++) {
+      List<?> fields = (List<?>) values.get(i);
+      fillState(states.get(ids.get(i)), (String) fields.get(0), (String) fields.get(1));
+    }
+  }
+
+  private static void fillState(UserState state, String uidNumber, String homeDirectory) {
+    if (state.getUidNumber() == null) {
+      state.setUidNumber(uidNumber);
+    }
+    if (state.getHomeDirectory() == null) {
+      state.setHomeDirectory(homeDirectory);
+    }
+  }
+
+  private static List<String> getIncomplete(Map<String, UserState> states) {
+    List<String> ids = new ArrayList<>();
+    for (Map.Entry<String, UserState> entry : states.entrySet()) {
+      if (entry.getValue().getUidNumber() == null
+          || entry.getValue().getHomeDirectory() == null) {
+        ids.add(entry.getKey());
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Sets the uidNumbers and home directories of several users in one round trip.
+   * 
+   * @param states the {@link UserState} by user id
+   */
+  public void setUserStates(Map<String, UserState> states) {
+    if (states.isEmpty()) {
+      return;
+    }
+    Map<String, String> values = new HashMap<>();
+    for (Map.Entry<String, UserState> entry : states.entrySet()) {
+      putIfNotNull(values, "user:" + entry.getKey() + ":uidNumber",
+          entry.getValue().getUidNumber());
+      putIfNotNull(values, "user:" + entry.getKey() + ":homeDirectory",
+          entry.getValue().getHomeDirectory());
+    }
+    if (!identityHashes) {
+      if (!values.isEmpty()) {
+        template.opsForValue().multiSet(values);
+      }
+      return;
+    }
+    template.executePipelined((RedisCallback<Object>) connection -> {
+      StringRedisConnection stringConnection = (StringRedisConnection) connection;
+      for (Map.Entry<String, UserState> entry : states.entrySet()) {
+        Map<String, String> fields = new HashMap<>();
+        putIfNotNull(fields, UID_NUMBER, entry.getValue().getUidNumber());
+        putIfNotNull(fields, HOME_DIRECTORY, entry.getValue().getHomeDirectory());
+        if (!fields.isEmpty()) {
+          stringConnection.hMSet(identityKey(entry.getKey()), fields);
+        }
+      }
+      if (legacyKeys && !values.isEmpty()) {
+        stringConnection.mSetString(values);
+      }
+      return null;
+    });
+  }
+
+  private static void putIfNotNull(Map<String, String> map, String key, String value) {
+    if (value != null) {
+      map.put(key, value);
+    }
+  }
+
+  /**
+   * Copies the identity string keys user:&lt;id&gt;, user:&lt;id&gt;:uidNumber and
+   * user:&lt;id&gt;:homeDirectory into the identity hashes, see {@link #migrateIdentities(String)}.
+   * 
+   * @return the number of copied keys
+   */
+  public long migrateIdentities() {
+    return migrateIdentities("user:*");
+  }
+
+  /**
+   * Copies the identity string keys matching the pattern into the identity hashes. Safe to run
+   * while serving.
+   * 
+   * <p>While redis.legacyKeys is on, the string keys are kept and overwrite the hash fields, so
+   * that nodes still running with redis.identityHashes off keep working and a rollback only needs
+   * redis.identityHashes switched off again. Once all nodes run with redis.identityHashes on, a
+   * last run syncs the hashes before redis.legacyKeys is switched off. With redis.legacyKeys off,
+   * a run moves the remaining string keys into the hashes, keeping newer hash fields, and
+   * deletes them.
+   * 
+   * @param pattern the key pattern, e.g. user:*
+   * @return the number of copied keys
+   */
+  public long migrateIdentities(String pattern) {
+    String delete = legacyKeys ? "" : "delete";
+    long migrated = template.execute((RedisCallback<Long>) connection -> {
+      long copied = 0;
+      ScanOptions options = ScanOptions.scanOptions().match(pattern).count(1000).build();
+      try (Cursor<byte[]> cursor = connection.scan(options)) {
+        while (cursor.hasNext()) {
+          String key = new String(cursor.next(), StandardCharsets.UTF_8);
+          String id = key.substring("user:".length());
+          String field = ID;
+          if (id.endsWith(":uidNumber")) {
+            id = id.substring(0, id.length() - ":uidNumber".length());
+            field = UID_NUMBER;
+          } else if (id.endsWith(":homeDirectory")) {
+            id = id.substring(0, id.length() - ":homeDirectory".length());
+            field = HOME_DIRECTORY;
+          }
+          copied += template.execute(migrateKeyScript, Arrays.asList(key, identityKey(id)), field,
+              delete);
+        }
+      } catch (IOException e) {
+        log.error("ERROR {}", e.getMessage());
+      }
+      return copied;
+    });
+    log.info("Migrated {} identity keys{}", migrated, legacyKeys ? "" : ", string keys deleted");
+    return migrated;
+  }
+
+  /**
+   * Gets the compact hash key of an identity, a truncated SHA-256 digest of the identity.
+   * 
+   * @param id the user's id or external id
+   * @return the hash key
+   */
+  public static String identityKey(String id) {
+    byte[] digest = DigestUtils.sha256(id);
+    return IDENTITY + Base64.encodeBase64URLSafeString(Arrays.copyOf(digest, DIGEST_LENGTH));
+  }
+
+  /**
+   * Stores a validated token.
+   * 
+   * @param digest the token's digest
+   * @param value the serialized validation result
+   * @param ttl the time to live in milliseconds
+   */
+  public void setToken(String digest, String value, long ttl) {
+    template.opsForValue().set("token:" + digest, value, ttl, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Gets a validated token.
+   * 
+   * @param digest the token's digest
+   * @return the serialized validation result or null if not stored or expired
+   */
+  public String getToken(String digest) {
+    return template.opsForValue().get("token:" + digest);
   }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.redis;
+
+/**
+ * A user's uidNumber and home directory as stored in redis for unlinking.
+ * 
+ * @author benjamin
+ *
+ */
+public class UserState {
+
+  String uidNumber;
+  String homeDirectory;
+
+  public UserState() {}
+
+  public UserState(String uidNumber, String homeDirectory) {
+    this.uidNumber = uidNumber;
+    this.homeDirectory = homeDirectory;
+  }
+
+  public String getUidNumber() {
+    return uidNumber;
+  }
+
+  public void setUidNumber(String uidNumber) {
+    this.uidNumber = uidNumber;
+  }
+
+  public String getHomeDirectory() {
+    return homeDirectory;
+  }
+
+  public void setHomeDirectory(String homeDirectory) {
+    this.homeDirectory = homeDirectory;
+  }
+
+  @Override
+  public String toString() {
+    return "UserState [uidNumber=" + uidNumber + ", homeDirectory=" + homeDirectory + "]";
+  }
+}
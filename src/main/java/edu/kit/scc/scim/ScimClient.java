@@ -0,0 +1,280 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.scim;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.http.StreamHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Client for a remote SCIM service provider. Resources are looked up by SCIM filter; providers
+ * that reject or ignore the filter are searched page by page, with up to scim.searchConcurrency
+ * pages fetched in parallel. Failed requests complete the lookup exceptionally, so that they are
+ * not mistaken for a missing resource.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class ScimClient {
+
+  private static final Logger log = LoggerFactory.getLogger(ScimClient.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Value("${scim.pageSize}")
+  private int pageSize;
+
+  @Value("${scim.searchConcurrency}")
+  private int searchConcurrency;
+
+  @Autowired
+  private HttpClient httpClient;
+
+  /**
+   * Finds the first resource with the given attribute value.
+   * 
+   * @param accessToken the access token for bearer authorization
+   * @param endpoint the SCIM resource endpoint, e.g. the /Users endpoint
+   * @param attribute the top level attribute to match
+   * @param value the attribute value
+   * @return a {@link CompletableFuture} completed with the resource or null if not found, or
+   *         completed exceptionally with a {@link ScimException} if a request failed
+   */
+  public CompletableFuture<JsonNode> findResource(String accessToken, String endpoint,
+      String attribute, String value) {
+    // SCIM filter values are JSON strings
+    String filter = attribute + " eq \""
+        + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    String url = endpoint + (endpoint.contains("?") ? "&" : "?") + "filter=" + encode(filter)
+        + "&startIndex=1&count=" + pageSize;
+
+    return getFilteredPage(accessToken, url, attribute, value).thenCompose(page -> {
+      if (page == FILTER_REJECTED) {
+        log.debug("Filter not supported by {}, searching all pages", endpoint);
+        return searchPages(accessToken, endpoint, attribute, value);
+      }
+      if (page == null) {
+        return failed(endpoint);
+      }
+      if (page.match != null || page.isComplete()) {
+        return CompletableFuture.completedFuture(page.match);
+      }
+      // the filter was ignored and the list paged, search the remaining pages
+      log.debug("Filter ignored by {}, searching all pages", endpoint);
+      return searchPages(accessToken, endpoint, attribute, value, page.resources + 1,
+          page.resources, page.totalResults);
+    });
+  }
+
+  /**
+   * Lists all resources of an endpoint page by page, optionally filtered.
+   * 
+   * @param accessToken the access token for bearer authorization
+   * @param endpoint the SCIM resource endpoint, e.g. the /Users endpoint
+   * @param filter the SCIM filter or null
+   * @param consumer the consumer of the listed resources
+   * @return a {@link CompletableFuture} completed with true if all pages were listed
+   */
+  public CompletableFuture<Boolean> listResources(String accessToken, String endpoint,
+      String filter, Consumer<JsonNode> consumer) {
+    return listPages(accessToken, endpoint, filter, 1, consumer);
+  }
+
+  private CompletableFuture<Boolean> listPages(String accessToken, String endpoint, String filter,
+      int startIndex, Consumer<JsonNode> consumer) {
+    String url = getPageUrl(endpoint, startIndex, pageSize)
+        + (filter == null ? "" : "&filter=" + encode(filter));
+    return getPage(accessToken, url, startIndex, resource -> {
+      consumer.accept(resource);
+      return false;
+    }).thenCompose(page -> {
+      if (page == null || page.isComplete()) {
+        return CompletableFuture.completedFuture(page != null);
+      }
+      return listPages(accessToken, endpoint, filter, startIndex + page.resources, consumer);
+    });
+  }
+
+  private CompletableFuture<JsonNode> searchPages(String accessToken, String endpoint,
+      String attribute, String value) {
+    return getPage(accessToken, getPageUrl(endpoint, 1, pageSize), 1, attribute, value)
+        .thenCompose(page -> {
+          if (page == null) {
+            return failed(endpoint);
+          }
+          if (page.match != null || page.isComplete()) {
+            return CompletableFuture.completedFuture(page.match);
+          }
+          return searchPages(accessToken, endpoint, attribute, value, page.resources + 1,
+              page.resources, page.totalResults);
+        });
+  }
+
+  // fetches the remaining pages, searchConcurrency at a time, until the first match, the
+  // provider's page size may be smaller than ours
+  private CompletableFuture<JsonNode> searchPages(String accessToken, String endpoint,
+      String attribute, String value, int startIndex, int count, int totalResults) {
+    int pages = (totalResults - startIndex) / count + 1;
+    Search search = new Search(startIndex, count, totalResults, Math.min(searchConcurrency, pages));
+    if (search.workers.get() <= 0) {
+      search.result.complete(null);
+    }
+    for (int i = search.workers.get(); i > 0; i--) {
+      searchNextPage(accessToken, endpoint, attribute, value, search);
+    }
+    return search.result;
+  }
+
+  // fetches the next page not yet claimed by another worker, the last worker completes the search
+  private void searchNextPage(String accessToken, String endpoint, String attribute,
+      String value, Search search) {
+    int index = search.nextIndex.getAndAdd(search.count);
+    if (search.result.isDone() || index > search.totalResults) {
+      if (search.workers.decrementAndGet() == 0) {
+        search.result.complete(null);
+      }
+      return;
+    }
+    getPage(accessToken, getPageUrl(endpoint, index, search.count), index, attribute, value)
+        .whenComplete((page, ex) -> {
+          if (page == null) {
+            // an unsearched page could hold the match
+            search.result.completeExceptionally(new ScimException(endpoint));
+          } else if (page.match != null) {
+            search.result.complete(page.match);
+          }
+          searchNextPage(accessToken, endpoint, attribute, value, search);
+        });
+  }
+
+  // reads the filtered first page, FILTER_REJECTED if the provider does not support the filter
+  private CompletableFuture<Page> getFilteredPage(String accessToken, String url,
+      String attribute, String value) {
+    Predicate<JsonNode> matcher = resource -> value.equals(resource.path(attribute).asText(null));
+    return httpClient.streamHttpsGetRequestAsync(accessToken, url, new StreamHandler<Page>() {
+      @Override
+      public Page handle(InputStream in) throws IOException {
+        return readPage(in, 1, matcher);
+      }
+
+      @Override
+      public Page handleError(int statusCode, InputStream in) throws IOException {
+        if (statusCode == 501) {
+          return FILTER_REJECTED;
+        }
+        if (statusCode == 400) {
+          // SCIM 2.0 error response, scimType invalidFilter
+          JsonNode error = mapper.readTree(in);
+          if (error != null && "invalidFilter".equals(error.path("scimType").asText(null))) {
+            return FILTER_REJECTED;
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  private CompletableFuture<Page> getPage(String accessToken, String url, int startIndex,
+      String attribute, String value) {
+    return getPage(accessToken, url, startIndex,
+        resource -> value.equals(resource.path(attribute).asText(null)));
+  }
+
+  // reads a page until the matcher accepts a resource
+  private CompletableFuture<Page> getPage(String accessToken, String url, int startIndex,
+      Predicate<JsonNode> matcher) {
+    return httpClient.streamHttpsGetRequestAsync(accessToken, url,
+        in -> readPage(in, startIndex, matcher));
+  }
+
+  private Page readPage(InputStream in, int startIndex, Predicate<JsonNode> matcher)
+      throws IOException {
+    Page page = new Page(startIndex);
+    page.totalResults = ScimListParser.parse(in, resource -> {
+      page.resources++;
+      if (matcher.test(resource)) {
+        page.match = resource;
+        return false;
+      }
+      return true;
+    });
+    return page;
+  }
+
+  private static <T> CompletableFuture<T> failed(String endpoint) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(new ScimException(endpoint));
+    return future;
+  }
+
+  private String getPageUrl(String endpoint, int startIndex, int count) {
+    return endpoint + (endpoint.contains("?") ? "&" : "?") + "startIndex=" + startIndex + "&count="
+        + count;
+  }
+
+  private String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final Page FILTER_REJECTED = new Page(1);
+
+  private static final class Search {
+    private final CompletableFuture<JsonNode> result = new CompletableFuture<>();
+    private final AtomicInteger nextIndex;
+    private final int count;
+    private final int totalResults;
+    private final AtomicInteger workers;
+
+    private Search(int startIndex, int count, int totalResults, int workers) {
+      this.nextIndex = new AtomicInteger(startIndex);
+      this.count = count;
+      this.totalResults = totalResults;
+      this.workers = new AtomicInteger(workers);
+    }
+  }
+
+  private static final class Page {
+    private final int startIndex;
+    private JsonNode match;
+    private int totalResults = -1;
+    private int resources;
+
+    private Page(int startIndex) {
+      this.startIndex = startIndex;
+    }
+
+    // a list without totalResults or resources is taken as complete
+    private boolean isComplete() {
+      return totalResults < 0 || resources == 0 || startIndex - 1 + resources >= totalResults;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.scim;
+
+/**
+ * Thrown when a request to a SCIM service provider fails, as opposed to a resource not being
+ * found.
+ * 
+ * @author benjamin
+ *
+ */
+public class ScimException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public ScimException(String endpoint) {
+    super("SCIM request to " + endpoint + " failed");
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.scim;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Predicate;
+
+/**
+ * Incremental parser for SCIM list responses. Only one resource of the list is held in memory at
+ * a time.
+ * 
+ * @author benjamin
+ *
+ */
+public final class ScimListParser {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private ScimListParser() {}
+
+  /**
+   * Parses a SCIM list response and passes its resources one by one to the consumer.
+   * 
+   * @param in the SCIM list response
+   * @param consumer the consumer of the resources, returns false to stop parsing
+   * @return the list's totalResults or -1 if not read
+   * @throws IOException if reading or parsing the stream fails
+   */
+  public static int parse(InputStream in, Predicate<JsonNode> consumer) throws IOException {
+    int totalResults = -1;
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected a SCIM list response",
+            parser.getCurrentLocation());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (field.equals("totalResults") && token == JsonToken.VALUE_NUMBER_INT) {
+          totalResults = parser.getIntValue();
+        } else if (field.equals("Resources") && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            JsonNode resource = mapper.readTree(parser);
+            if (!consumer.test(resource)) {
+              return totalResults;
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return totalResults;
+  }
+
+  /**
+   * Finds the first resource of a SCIM list response with the given attribute value.
+   * 
+   * @param in the SCIM list response
+   * @param attribute the top level attribute to match
+   * @param value the attribute value
+   * @return the matching resource or null if not found
+   * @throws IOException if reading or parsing the stream fails
+   */
+  public static JsonNode findResource(InputStream in, String attribute, String value)
+      throws IOException {
+    JsonNode[] match = new JsonNode[1];
+    parse(in, resource -> {
+      if (value.equals(resource.path(attribute).asText(null))) {
+        match[0] = resource;
+        return false;
+      }
+      return true;
+    });
+    return match[0];
+  }
+}
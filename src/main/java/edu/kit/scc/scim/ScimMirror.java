@@ -0,0 +1,431 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.scim;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.kit.scc.oidc.OidcClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Local replica of the IAM SCIM users and groups, indexed by id, name and externalId. After a
+ * full import, resources modified since the last sync are fetched by meta.lastModified filter,
+ * and deleted resources are found by comparing the mirrored ids with an id-only listing. The
+ * periodic full sync imports all resources again. Syncs run asynchronously and never block the
+ * task scheduler.
+ * 
+ * @author benjamin
+ *
+ */
+@Component
+public class ScimMirror implements PublicMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(ScimMirror.class);
+
+  private static final String SCIM_READ = "scim:read";
+
+  private static final String[] USER_ATTRIBUTES = {"userName", "displayName", "externalId"};
+
+  private static final String[] GROUP_ATTRIBUTES = {"displayName", "externalId"};
+
+  @Value("${scim.users}")
+  private String usersEndpoint;
+
+  @Value("${scim.groups}")
+  private String groupsEndpoint;
+
+  @Value("${scim.mirror.enabled}")
+  private boolean enabled;
+
+  @Value("${scim.mirror.syncInterval}")
+  private long syncInterval;
+
+  @Value("${scim.mirror.fullSyncInterval}")
+  private long fullSyncInterval;
+
+  @Autowired
+  private ScimClient scimClient;
+
+  @Autowired
+  private OidcClient oidcClient;
+
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  private volatile Index users = new Index(USER_ATTRIBUTES);
+
+  private volatile Index groups = new Index(GROUP_ATTRIBUTES);
+
+  private volatile String lastModified;
+
+  private volatile long lastFullSync;
+
+  private final AtomicBoolean syncing = new AtomicBoolean();
+
+  private final AtomicLong syncs = new AtomicLong();
+
+  private final AtomicLong syncFailures = new AtomicLong();
+
+  private ScheduledFuture<?> syncTask;
+
+  /**
+   * Starts the background sync if enabled.
+   */
+  @PostConstruct
+  public void init() {
+    if (enabled) {
+      syncTask = taskScheduler.scheduleWithFixedDelay(this::sync, syncInterval * 1000);
+    }
+  }
+
+  /**
+   * Stops the background sync.
+   */
+  @PreDestroy
+  public void stop() {
+    if (syncTask != null) {
+      syncTask.cancel(false);
+    }
+  }
+
+  /**
+   * Synchronizes the replica with IAM.
+   * 
+   * @return a {@link CompletableFuture} completed with true if the sync succeeded
+   */
+  public CompletableFuture<Boolean> sync() {
+    return oidcClient.getAccessToken(SCIM_READ).thenCompose(accessToken -> {
+      if (accessToken == null) {
+        log.error("Could not get IAM access token for SCIM sync");
+        syncFailures.incrementAndGet();
+        return CompletableFuture.completedFuture(false);
+      }
+      return sync(accessToken);
+    });
+  }
+
+  /**
+   * Synchronizes the replica with IAM, fully if the replica is empty or the full sync interval
+   * has passed, incrementally otherwise.
+   * 
+   * @param accessToken the access token for the SCIM requests
+   * @return a {@link CompletableFuture} completed with true if the sync succeeded
+   */
+  public CompletableFuture<Boolean> sync(String accessToken) {
+    if (!syncing.compareAndSet(false, true)) {
+      log.debug("SCIM sync already running");
+      return CompletableFuture.completedFuture(false);
+    }
+    boolean full = lastModified == null
+        || System.currentTimeMillis() - lastFullSync >= fullSyncInterval * 1000;
+    CompletableFuture<Boolean> sync = full ? fullSync(accessToken)
+        : incrementalSync(accessToken).thenCompose(synced -> {
+          if (synced) {
+            return CompletableFuture.completedFuture(true);
+          }
+          // e.g. the provider does not support filtering by meta.lastModified
+          syncFailures.incrementAndGet();
+          return fullSync(accessToken);
+        });
+    return sync.handle((synced, ex) -> {
+      syncing.set(false);
+      if (ex != null) {
+        log.error("ERROR {}", ex.getMessage());
+      }
+      if (Boolean.TRUE.equals(synced)) {
+        syncs.incrementAndGet();
+        return true;
+      }
+      syncFailures.incrementAndGet();
+      return false;
+    });
+  }
+
+  /**
+   * Drops the replica, the next sync imports all resources again.
+   */
+  public void clear() {
+    users = new Index(USER_ATTRIBUTES);
+    groups = new Index(GROUP_ATTRIBUTES);
+    lastModified = null;
+    lastFullSync = 0;
+  }
+
+  public boolean isReady() {
+    return lastFullSync > 0;
+  }
+
+  public JsonNode getUser(String id) {
+    return users.get(id);
+  }
+
+  public JsonNode getUserByUserName(String userName) {
+    return users.get("userName", userName);
+  }
+
+  /**
+   * Gets the users with the given displayName, which is not unique in SCIM.
+   * 
+   * @param displayName the displayName
+   * @return the list of users, empty if none is mirrored
+   */
+  public List<JsonNode> getUsersByDisplayName(String displayName) {
+    return users.getAll("displayName", displayName);
+  }
+
+  public JsonNode getUserByExternalId(String externalId) {
+    return users.get("externalId", externalId);
+  }
+
+  public JsonNode getGroup(String id) {
+    return groups.get(id);
+  }
+
+  public JsonNode getGroupByDisplayName(String displayName) {
+    return groups.get("displayName", displayName);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<Integer>("scim.mirror.users", users.size()));
+    metrics.add(new Metric<Integer>("scim.mirror.groups", groups.size()));
+    metrics.add(new Metric<Long>("scim.mirror.syncs", syncs.get()));
+    metrics.add(new Metric<Long>("scim.mirror.failures", syncFailures.get()));
+    metrics.add(new Metric<Long>("scim.mirror.lastFullSync", lastFullSync));
+    return metrics;
+  }
+
+  // imports into new indexes, which replace the current ones only on success
+  private CompletableFuture<Boolean> fullSync(String accessToken) {
+    Index newUsers = new Index(USER_ATTRIBUTES);
+    Index newGroups = new Index(GROUP_ATTRIBUTES);
+    LastModified newLastModified = new LastModified(null);
+    long start = System.currentTimeMillis();
+    return andThen(importResources(accessToken, usersEndpoint, null, newUsers, newLastModified),
+        () -> importResources(accessToken, groupsEndpoint, null, newGroups, newLastModified))
+        .thenApply(imported -> {
+          if (!imported) {
+            log.error("SCIM full sync failed");
+            return false;
+          }
+          users = newUsers;
+          groups = newGroups;
+          lastModified = newLastModified.get();
+          lastFullSync = start;
+          log.info("SCIM full sync of {} users and {} groups in {} ms", newUsers.size(),
+              newGroups.size(), System.currentTimeMillis() - start);
+          return true;
+        });
+  }
+
+  private CompletableFuture<Boolean> incrementalSync(String accessToken) {
+    String filter = "meta.lastModified ge \"" + lastModified + "\"";
+    LastModified newLastModified = new LastModified(lastModified);
+    Index currentUsers = users;
+    Index currentGroups = groups;
+    return andThen(
+        importResources(accessToken, usersEndpoint, filter, currentUsers, newLastModified),
+        () -> importResources(accessToken, groupsEndpoint, filter, currentGroups, newLastModified))
+        .thenCompose(imported -> {
+          if (!imported) {
+            log.error("SCIM incremental sync failed");
+            return CompletableFuture.completedFuture(false);
+          }
+          lastModified = newLastModified.get();
+          return andThen(removeDeleted(accessToken, usersEndpoint, currentUsers),
+              () -> removeDeleted(accessToken, groupsEndpoint, currentGroups));
+        });
+  }
+
+  // SCIM has no deletion feed, deleted resources are missing from the listing of all ids. A
+  // resource skipped while the listing shifted is only looked up at IAM until the next import.
+  private CompletableFuture<Boolean> removeDeleted(String accessToken, String endpoint,
+      Index index) {
+    Set<String> ids = ConcurrentHashMap.newKeySet();
+    String url = endpoint + (endpoint.contains("?") ? "&" : "?") + "attributes=id";
+    return scimClient.listResources(accessToken, url, null, resource -> {
+      String id = resource.path("id").asText(null);
+      if (id != null) {
+        ids.add(id);
+      }
+    }).thenApply(listed -> {
+      if (listed) {
+        for (String id : index.getIds()) {
+          if (!ids.contains(id)) {
+            log.debug("SCIM resource {} deleted", id);
+            index.remove(id);
+          }
+        }
+      }
+      return listed;
+    });
+  }
+
+  private CompletableFuture<Boolean> importResources(String accessToken, String endpoint,
+      String filter, Index index, LastModified lastModified) {
+    return scimClient.listResources(accessToken, endpoint, filter, resource -> {
+      index.put(resource);
+      lastModified.update(resource);
+    });
+  }
+
+  // runs the next step only if the previous one succeeded
+  private static CompletableFuture<Boolean> andThen(CompletableFuture<Boolean> previous,
+      Supplier<CompletableFuture<Boolean>> next) {
+    return previous.thenCompose(
+        succeeded -> succeeded ? next.get() : CompletableFuture.completedFuture(false));
+  }
+
+  /**
+   * Latest meta.lastModified of the synced resources.
+   */
+  private static final class LastModified {
+    private String value;
+    private long time;
+
+    private LastModified(String value) {
+      this.value = value;
+      this.time = parse(value);
+    }
+
+    private synchronized void update(JsonNode resource) {
+      String candidate = resource.path("meta").path("lastModified").asText(null);
+      long candidateTime = parse(candidate);
+      if (candidateTime > time) {
+        value = candidate;
+        time = candidateTime;
+      }
+    }
+
+    private synchronized String get() {
+      return value;
+    }
+
+    private static long parse(String value) {
+      if (value == null) {
+        return -1;
+      }
+      try {
+        return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+        log.debug("Invalid lastModified {}", value);
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Resources by id, with hash indexes of attributes. Attribute values need not be unique.
+   */
+  private static final class Index {
+    private final Map<String, JsonNode> resources = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Set<String>>> attributes = new HashMap<>();
+
+    private Index(String... indexedAttributes) {
+      for (String attribute : indexedAttributes) {
+        attributes.put(attribute, new ConcurrentHashMap<>());
+      }
+    }
+
+    private JsonNode get(String id) {
+      return id == null ? null : resources.get(id);
+    }
+
+    // the first resource with the attribute value
+    private JsonNode get(String attribute, String value) {
+      List<JsonNode> matches = getAll(attribute, value);
+      return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    private List<JsonNode> getAll(String attribute, String value) {
+      List<JsonNode> matches = new ArrayList<>();
+      Set<String> ids = value == null ? null : attributes.get(attribute).get(value);
+      if (ids != null) {
+        for (String id : ids) {
+          JsonNode resource = resources.get(id);
+          if (resource != null) {
+            matches.add(resource);
+          }
+        }
+      }
+      return matches;
+    }
+
+    private Set<String> getIds() {
+      return new HashSet<>(resources.keySet());
+    }
+
+    private synchronized void put(JsonNode resource) {
+      String id = resource.path("id").asText(null);
+      if (id == null) {
+        return;
+      }
+      unindex(id, resources.put(id, resource));
+      for (Map.Entry<String, Map<String, Set<String>>> index : attributes.entrySet()) {
+        String value = resource.path(index.getKey()).asText(null);
+        if (value != null) {
+          index.getValue().computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+      }
+    }
+
+    private synchronized void remove(String id) {
+      unindex(id, resources.remove(id));
+    }
+
+    private void unindex(String id, JsonNode resource) {
+      if (resource == null) {
+        return;
+      }
+      for (Map.Entry<String, Map<String, Set<String>>> index : attributes.entrySet()) {
+        String value = resource.path(index.getKey()).asText(null);
+        Set<String> ids = value == null ? null : index.getValue().get(value);
+        if (ids != null) {
+          ids.remove(id);
+          if (ids.isEmpty()) {
+            index.getValue().remove(value);
+          }
+        }
+      }
+    }
+
+    private int size() {
+      return resources.size();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+-- Allocates the next number of a range to a key, in one atomic step.
+-- KEYS[1] the key mapped to the number, KEYS[2] the range's counter,
+-- KEYS[3] the set of numbers in use outside redis, which are skipped,
+-- KEYS[4] optional legacy string key of the mapping
+-- ARGV[1] the range start, ARGV[2] the range end,
+-- ARGV[3] optional hash field of KEYS[1] holding the number,
+-- ARGV[4] 'legacy' to read the legacy key first and write it too
+-- Returns the key's existing or new number, or -1 if the range is exhausted.
+local field = ARGV[3]
+local legacy = KEYS[4] and ARGV[4] == 'legacy'
+local function get()
+  if field then
+    return redis.call('HGET', KEYS[1], field)
+  end
+  return redis.call('GET', KEYS[1])
+end
+local function set(value)
+  if field then
+    redis.call('HSET', KEYS[1], field, value)
+  else
+    redis.call('SET', KEYS[1], value)
+  end
+  if legacy then
+    redis.call('SET', KEYS[4], value)
+  end
+end
+local number
+if legacy then
+  number = redis.call('GET', KEYS[4]) or get()
+else
+  number = get()
+end
+if number then
+  return tonumber(number)
+end
+if KEYS[4] and not legacy then
+  number = redis.call('GET', KEYS[4])
+  if number then
+    set(number)
+    return tonumber(number)
+  end
+end
+redis.call('SETNX', KEYS[2], ARGV[1])
+number = tonumber(redis.call('GET', KEYS[2])) + 1
+while redis.call('SISMEMBER', KEYS[3], number) == 1 do
+  number = number + 1
+end
+if number > tonumber(ARGV[2]) then
+  return -1
+end
+redis.call('SET', KEYS[2], number)
+set(number)
+return number
@@ -0,0 +1,37 @@
+-- Maps a key to a value unless it is already mapped.
+-- KEYS[1] the key, KEYS[2] optional legacy string key of the mapping
+-- ARGV[1] the value, ARGV[2] optional hash field of KEYS[1] holding the value,
+-- ARGV[3] 'legacy' to read the legacy key first and write it too
+-- Returns the key's existing value or ARGV[1].
+local field = ARGV[2]
+local legacy = KEYS[2] and ARGV[3] == 'legacy'
+local function get()
+  if field then
+    return redis.call('HGET', KEYS[1], field)
+  end
+  return redis.call('GET', KEYS[1])
+end
+local value
+if legacy then
+  value = redis.call('GET', KEYS[2]) or get()
+else
+  value = get()
+end
+if value then
+  return value
+end
+if KEYS[2] and not legacy then
+  value = redis.call('GET', KEYS[2])
+end
+if not value then
+  value = ARGV[1]
+end
+if field then
+  redis.call('HSET', KEYS[1], field, value)
+else
+  redis.call('SET', KEYS[1], value)
+end
+if legacy then
+  redis.call('SET', KEYS[2], value)
+end
+return value
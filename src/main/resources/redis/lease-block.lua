@@ -0,0 +1,17 @@
+-- Leases a block of numbers of a range, in one atomic step.
+-- KEYS[1] the range's counter, KEYS[2] the list of returned blocks "<from>-<to>"
+-- ARGV[1] the range start, ARGV[2] the range end, ARGV[3] the block size
+-- Returns {from, to} of the leased block, or an empty list if the range is exhausted.
+local block = redis.call('LPOP', KEYS[2])
+if block then
+  local from, to = string.match(block, '(%d+)-(%d+)')
+  return {tonumber(from), tonumber(to)}
+end
+redis.call('SETNX', KEYS[1], ARGV[1])
+local from = tonumber(redis.call('GET', KEYS[1])) + 1
+if from > tonumber(ARGV[2]) then
+  return {}
+end
+local to = math.min(from + tonumber(ARGV[3]) - 1, tonumber(ARGV[2]))
+redis.call('SET', KEYS[1], to)
+return {from, to}
@@ -0,0 +1,21 @@
+-- Reads a value from a string key or a hash field, falling back to a legacy string key.
+-- KEYS[1] the key, KEYS[2] optional legacy string key
+-- ARGV[1] optional hash field of KEYS[1] holding the value,
+-- ARGV[2] 'legacy' to read the legacy key first, while it is still written
+-- Returns the value or nil.
+local function get()
+  if ARGV[1] then
+    return redis.call('HGET', KEYS[1], ARGV[1])
+  end
+  return redis.call('GET', KEYS[1])
+end
+local value
+if KEYS[2] and ARGV[2] == 'legacy' then
+  value = redis.call('GET', KEYS[2]) or get()
+else
+  value = get()
+  if not value and KEYS[2] then
+    value = redis.call('GET', KEYS[2])
+  end
+end
+return value
@@ -0,0 +1,17 @@
+-- Copies a legacy string key into a field of a hash.
+-- KEYS[1] the legacy key, KEYS[2] the hash
+-- ARGV[1] the hash field, ARGV[2] 'delete' to delete the legacy key after cut-over
+-- Returns 1 if the key was copied, 0 if it did not exist.
+local value = redis.call('GET', KEYS[1])
+if not value then
+  return 0
+end
+if ARGV[2] == 'delete' then
+  -- after cut-over the hash is authoritative
+  redis.call('HSETNX', KEYS[2], ARGV[1], value)
+  redis.call('DEL', KEYS[1])
+else
+  -- while the legacy keys are still written they are authoritative
+  redis.call('HSET', KEYS[2], ARGV[1], value)
+end
+return 1
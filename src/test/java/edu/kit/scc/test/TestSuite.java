@@ -9,10 +9,22 @@
 
 package edu.kit.scc.test;
 
+import edu.kit.scc.test.auth.AuthenticationChainFilterTest;
+import edu.kit.scc.test.auth.BearerTokenAuthenticatorTest;
+import edu.kit.scc.test.auth.ClientCertificateAuthenticatorTest;
+import edu.kit.scc.test.auth.ServiceTokenIssuerTest;
+import edu.kit.scc.test.auth.TokenCacheTest;
 import edu.kit.scc.test.http.HttpClientTest;
+import edu.kit.scc.test.http.SslContextRegistryTest;
 import edu.kit.scc.test.ldap.LdapClientTest;
+import edu.kit.scc.test.oidc.JwtValidatorTest;
+import edu.kit.scc.test.oidc.OidcClientTest;
+import edu.kit.scc.test.redis.NumberBlockAllocatorTest;
 import edu.kit.scc.test.redis.RedisClientTest;
 import edu.kit.scc.test.rest.RestServiceTest;
+import edu.kit.scc.test.scim.ScimClientTest;
+import edu.kit.scc.test.scim.ScimListParserTest;
+import edu.kit.scc.test.scim.ScimMirrorTest;
 import edu.kit.scc.test.scim.ScimModelTest;
 
 import org.junit.runner.RunWith;
@@ -20,7 +32,11 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({CreatePosixUserTest.class, LdapClientTest.class, RedisClientTest.class,
-    HttpClientTest.class, RestServiceTest.class, ScimModelTest.class})
+    HttpClientTest.class, RestServiceTest.class, ScimModelTest.class, TokenCacheTest.class,
+    BearerTokenAuthenticatorTest.class, JwtValidatorTest.class, ServiceTokenIssuerTest.class,
+    ClientCertificateAuthenticatorTest.class, AuthenticationChainFilterTest.class,
+    SslContextRegistryTest.class, ScimListParserTest.class, OidcClientTest.class,
+    ScimClientTest.class, ScimMirrorTest.class, NumberBlockAllocatorTest.class})
 public class TestSuite {
 
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.auth.AuthenticationChainFilter;
+import edu.kit.scc.auth.AuthenticatorMetrics;
+import edu.kit.scc.auth.BasicAuthenticator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class AuthenticationChainFilterTest {
+
+  @Value("${rest.serviceUsername}")
+  private String restUser;
+
+  @Value("${rest.servicePassword}")
+  private String restPassword;
+
+  @Autowired
+  private AuthenticationChainFilter authenticationChainFilter;
+
+  @Autowired
+  private BasicAuthenticator basicAuthenticator;
+
+  @After
+  public void tearDown() {
+    SecurityContextHolder.clearContext();
+  }
+
+  @Test
+  public void getSchemeTest() {
+    assertEquals(AuthenticationChainFilter.BASIC,
+        AuthenticationChainFilter.getScheme("Basic cmVzdGFkbWluOnJlc3RhZG1pbg=="));
+    assertEquals(AuthenticationChainFilter.BEARER_JWT,
+        AuthenticationChainFilter.getScheme("bearer eyJ.eyJ.sig"));
+    assertEquals(AuthenticationChainFilter.BEARER_OPAQUE,
+        AuthenticationChainFilter.getScheme("Bearer 2d8c0e4f-opaque"));
+    assertEquals("digest", AuthenticationChainFilter.getScheme("Digest username=\"x\""));
+
+    assertNull(AuthenticationChainFilter.getScheme(null));
+    assertNull(AuthenticationChainFilter.getScheme("Basic"));
+    assertNull(AuthenticationChainFilter.getScheme(" Basic abc"));
+  }
+
+  @Test
+  public void basicAuthenticationTest() throws Exception {
+    AuthenticatorMetrics metrics =
+        authenticationChainFilter.getMetrics(AuthenticationChainFilter.BASIC);
+    long successes = metrics.getSuccesses();
+    long failures = metrics.getFailures();
+
+    Authentication authentication = filter(basic(restUser, restPassword));
+    assertNotNull(authentication);
+    assertEquals("ROLE_ADMIN", authentication.getAuthorities().iterator().next().getAuthority());
+    assertEquals(successes + 1, metrics.getSuccesses());
+
+    SecurityContextHolder.clearContext();
+    assertNull(filter(basic(restUser, "wrong")));
+    assertEquals(failures + 1, metrics.getFailures());
+  }
+
+  @Test
+  public void disabledAccountTest() throws Exception {
+    DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+    provider.setUserDetailsService(username -> new User(username, restPassword, false, true, true,
+        true, AuthorityUtils.createAuthorityList("ROLE_ADMIN")));
+    Object authenticationManager =
+        ReflectionTestUtils.getField(basicAuthenticator, "authenticationManager");
+    ReflectionTestUtils.setField(basicAuthenticator, "authenticationManager",
+        new ProviderManager(Arrays.asList(provider)));
+    try {
+      // account checks apply to basic credentials
+      assertNull(filter(basic(restUser, restPassword)));
+    } finally {
+      ReflectionTestUtils.setField(basicAuthenticator, "authenticationManager",
+          authenticationManager);
+    }
+  }
+
+  @Test
+  public void unsupportedSchemeTest() throws Exception {
+    assertNull(filter("Digest username=\"restadmin\""));
+  }
+
+  private String basic(String user, String password) {
+    return "Basic " + Base64.encodeBase64String((user + ":" + password).getBytes());
+  }
+
+  private Authentication filter(String authorizationHeader) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader("Authorization", authorizationHeader);
+    authenticationChainFilter.doFilter(request, new MockHttpServletResponse(),
+        new MockFilterChain());
+    return SecurityContextHolder.getContext().getAuthentication();
+  }
+}
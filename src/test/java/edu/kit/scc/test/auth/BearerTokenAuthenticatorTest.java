@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.auth.BearerTokenAuthenticator;
+import edu.kit.scc.auth.TokenCache;
+import edu.kit.scc.auth.TokenPrincipal;
+import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.oidc.OidcDiscovery;
+import edu.kit.scc.oidc.OidcIssuer;
+import edu.kit.scc.oidc.OidcProperties;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class BearerTokenAuthenticatorTest {
+
+  @Autowired
+  private BearerTokenAuthenticator bearerTokenAuthenticator;
+
+  @Autowired
+  private TokenCache tokenCache;
+
+  @Autowired
+  private OidcDiscovery discovery;
+
+  @Autowired
+  private HttpClient httpClient;
+
+  @Autowired
+  private ResourceLoader resourceLoader;
+
+  @Test
+  public void getBearerTokenTest() {
+    assertEquals("abc.DEF-123_~+/=",
+        BearerTokenAuthenticator.getBearerToken("Bearer abc.DEF-123_~+/="));
+    assertEquals("token", BearerTokenAuthenticator.getBearerToken("bearer token"));
+
+    assertNull(BearerTokenAuthenticator.getBearerToken(null));
+    assertNull(BearerTokenAuthenticator.getBearerToken(""));
+    assertNull(BearerTokenAuthenticator.getBearerToken("Bearer"));
+    assertNull(BearerTokenAuthenticator.getBearerToken("Bearer "));
+    assertNull(BearerTokenAuthenticator.getBearerToken("Basic cmVzdGFkbWluOnJlc3RhZG1pbg=="));
+    assertNull(BearerTokenAuthenticator.getBearerToken("Bearer token with spaces"));
+  }
+
+  @Test
+  public void authenticateWithoutBearerTokenTest() {
+    assertNull(bearerTokenAuthenticator.authenticate((String) null));
+    assertNull(bearerTokenAuthenticator.authenticate("Basic cmVzdGFkbWluOnJlc3RhZG1pbg=="));
+  }
+
+  @Test
+  public void authenticateWithRejectedTokenTest() {
+    String token = UUID.randomUUID().toString();
+    tokenCache.reject(TokenCache.digest(token));
+    long rejectedHits = tokenCache.getRejectedHits();
+
+    assertNull(bearerTokenAuthenticator.authenticate("Bearer " + token));
+    assertEquals(rejectedHits + 1, tokenCache.getRejectedHits());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void validateTokensOfTwoIssuersTest() throws Exception {
+    RSAKey firstKey = createKey("first");
+    RSAKey secondKey = createKey("second");
+    OidcIssuer first = createIssuer("https://first.example.org/", firstKey);
+    OidcIssuer second = createIssuer("https://second.example.org/", secondKey);
+
+    List<OidcIssuer> issuers =
+        (List<OidcIssuer>) ReflectionTestUtils.getField(discovery, "issuers");
+    ReflectionTestUtils.setField(discovery, "issuers", Arrays.asList(first, second));
+    try {
+      // the same subject at two issuers are two principals, the default issuer's unqualified
+      TokenPrincipal firstPrincipal = bearerTokenAuthenticator
+          .validateToken(sign(firstKey, "https://first.example.org/", "subject"));
+      TokenPrincipal secondPrincipal = bearerTokenAuthenticator
+          .validateToken(sign(secondKey, "https://second.example.org/", "subject"));
+      assertNotNull(firstPrincipal);
+      assertNotNull(secondPrincipal);
+      assertEquals("subject", firstPrincipal.getPrincipal());
+      assertEquals("https://second.example.org/#subject", secondPrincipal.getPrincipal());
+
+      // tokens are only valid with the keys of their own issuer
+      RSAKey forgedKey = createKey("first");
+      assertNull(bearerTokenAuthenticator
+          .validateToken(sign(forgedKey, "https://first.example.org/", "subject")));
+    } finally {
+      ReflectionTestUtils.setField(discovery, "issuers", issuers);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void validateClientClaimsTest() throws Exception {
+    RSAKey key = createKey("client");
+    OidcIssuer issuer = createIssuer("https://client.example.org/", key);
+
+    List<OidcIssuer> issuers =
+        (List<OidcIssuer>) ReflectionTestUtils.getField(discovery, "issuers");
+    ReflectionTestUtils.setField(discovery, "issuers", Arrays.asList(issuer));
+    try {
+      // only tokens issued to the client itself are client tokens
+      TokenPrincipal client = bearerTokenAuthenticator.validateToken(sign(key,
+          claims("https://client.example.org/", "robot").claim("azp", "robot").build()));
+      assertEquals("ROLE_CLIENT", client.getRole());
+
+      TokenPrincipal user = bearerTokenAuthenticator.validateToken(sign(key,
+          claims("https://client.example.org/", "alice").claim("client_id", "robot")
+              .claim("azp", "robot").build()));
+      assertEquals("ROLE_USER", user.getRole());
+      assertEquals("alice", user.getPrincipal());
+
+      assertNull(bearerTokenAuthenticator.validateToken(sign(key,
+          claims("https://client.example.org/", null).claim("client_id", "robot").build())));
+    } finally {
+      ReflectionTestUtils.setField(discovery, "issuers", issuers);
+    }
+  }
+
+  @Test
+  public void issuerMetricsTest() {
+    for (OidcIssuer issuer : discovery.getIssuers()) {
+      assertTrue(issuer.metrics().get(0).getName().startsWith("oidc.issuer." + issuer.getName()));
+    }
+    assertEquals("default", discovery.getDefaultIssuer().getName());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void coalesceValidationsTest() throws Exception {
+    CountDownLatch received = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger requests = new AtomicInteger();
+    AtomicReference<String> body = new AtomicReference<>("{\"sub\":\"alice\"}");
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/userinfo", exchange -> {
+      requests.incrementAndGet();
+      received.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] response = body.get().getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    server.start();
+
+    OidcIssuer issuer = createIssuer("https://opaque.example.org/", createKey("opaque"),
+        "http://localhost:" + server.getAddress().getPort() + "/userinfo");
+    List<OidcIssuer> issuers =
+        (List<OidcIssuer>) ReflectionTestUtils.getField(discovery, "issuers");
+    ReflectionTestUtils.setField(discovery, "issuers", Arrays.asList(issuer));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // concurrent callers share the first caller's validation
+      String token = UUID.randomUUID().toString();
+      List<Future<TokenPrincipal>> principals = new ArrayList<>();
+      principals.add(executor.submit(() -> bearerTokenAuthenticator.resolveToken(token)));
+      assertTrue(received.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 3; i++) {
+        principals.add(executor.submit(() -> bearerTokenAuthenticator.resolveToken(token)));
+      }
+      Thread.sleep(200);
+      release.countDown();
+      for (Future<TokenPrincipal> principal : principals) {
+        assertEquals("alice", principal.get(10, TimeUnit.SECONDS).getPrincipal());
+      }
+      assertEquals(1, requests.get());
+
+      // a failed validation releases the waiters and is not cached
+      String failingToken = UUID.randomUUID().toString();
+      body.set("not json");
+      assertNull(bearerTokenAuthenticator.authenticate("Bearer " + failingToken));
+      assertNull(bearerTokenAuthenticator.authenticate("Bearer " + failingToken));
+      assertEquals(3, requests.get());
+    } finally {
+      executor.shutdownNow();
+      ReflectionTestUtils.setField(discovery, "issuers", issuers);
+      server.stop(0);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void pendingValidationTimeoutTest() throws Exception {
+    CountDownLatch received = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/userinfo", exchange -> {
+      received.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] response = "{\"sub\":\"bob\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    server.start();
+
+    OidcIssuer issuer = createIssuer("https://opaque.example.org/", createKey("opaque"),
+        "http://localhost:" + server.getAddress().getPort() + "/userinfo");
+    List<OidcIssuer> issuers =
+        (List<OidcIssuer>) ReflectionTestUtils.getField(discovery, "issuers");
+    Object validationTimeout =
+        ReflectionTestUtils.getField(bearerTokenAuthenticator, "validationTimeout");
+    ReflectionTestUtils.setField(discovery, "issuers", Arrays.asList(issuer));
+    ReflectionTestUtils.setField(bearerTokenAuthenticator, "validationTimeout", 1L);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      String token = UUID.randomUUID().toString();
+      Future<TokenPrincipal> first =
+          executor.submit(() -> bearerTokenAuthenticator.resolveToken(token));
+      assertTrue(received.await(10, TimeUnit.SECONDS));
+
+      // the waiter gives up while the first validation hangs
+      long start = System.currentTimeMillis();
+      assertNull(bearerTokenAuthenticator.resolveToken(token));
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      release.countDown();
+      assertEquals("bob", first.get(10, TimeUnit.SECONDS).getPrincipal());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+      ReflectionTestUtils.setField(bearerTokenAuthenticator, "validationTimeout",
+          validationTimeout);
+      ReflectionTestUtils.setField(discovery, "issuers", issuers);
+      server.stop(0);
+    }
+  }
+
+  private OidcIssuer createIssuer(String issuer, RSAKey key) throws Exception {
+    return createIssuer(issuer, key, null);
+  }
+
+  private OidcIssuer createIssuer(String issuer, RSAKey key, String userInfo) throws Exception {
+    Path directory = Files.createTempDirectory("issuer");
+    JSONObject configuration = new JSONObject();
+    configuration.put("issuer", issuer);
+    Path discoveryDocument = directory.resolve("openid-configuration");
+    Files.write(discoveryDocument, configuration.toString().getBytes(StandardCharsets.UTF_8));
+    Path jwks = directory.resolve("jwks.json");
+    Files.write(jwks,
+        new JWKSet(key).toJSONObject(true).toString().getBytes(StandardCharsets.UTF_8));
+
+    OidcProperties.Issuer properties = new OidcProperties.Issuer();
+    properties.setIssuer(issuer);
+    properties.setDiscovery(discoveryDocument.toUri().toString());
+    properties.setJwks(jwks.toUri().toString());
+    properties.setUserinfo(userInfo);
+    properties.setClientid("idh");
+    properties.setOpaqueTokens(userInfo != null);
+    OidcIssuer oidcIssuer = new OidcIssuer(properties, 60, httpClient, resourceLoader, null);
+    oidcIssuer.refresh();
+    return oidcIssuer;
+  }
+
+  private RSAKey createKey(String kid) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+
+    return new RSAKey.Builder((RSAPublicKey) keyPair.getPublic())
+        .privateKey((RSAPrivateKey) keyPair.getPrivate()).keyID(kid).build();
+  }
+
+  private String sign(RSAKey key, String issuer, String subject) throws Exception {
+    return sign(key, claims(issuer, subject).build());
+  }
+
+  private String sign(RSAKey key, JWTClaimsSet claims) throws Exception {
+    SignedJWT jwt =
+        new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+            claims);
+    jwt.sign(new RSASSASigner(key.toRSAPrivateKey()));
+    return jwt.serialize();
+  }
+
+  private JWTClaimsSet.Builder claims(String issuer, String subject) {
+    return new JWTClaimsSet.Builder().subject(subject).issuer(issuer).audience("idh")
+        .expirationTime(new Date(System.currentTimeMillis() + 60000));
+  }
+}
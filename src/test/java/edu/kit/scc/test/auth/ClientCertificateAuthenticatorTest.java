@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.auth.ClientCertificateAuthenticator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.Authentication;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class ClientCertificateAuthenticatorTest {
+
+  private X509Certificate certificate;
+
+  /**
+   * Loads the test server certificate as client certificate.
+   * 
+   * @throws Exception on errors loading the key store
+   */
+  @Before
+  public void setUp() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    try (InputStream in = new ClassPathResource("privateKey.store").getInputStream()) {
+      keyStore.load(in, "changeit".toCharArray());
+    }
+    certificate = (X509Certificate) keyStore.getCertificate("testserver");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void requireFingerprintTest() {
+    ClientCertificateAuthenticator authenticator = new ClientCertificateAuthenticator();
+    authenticator.setEnabled(true);
+    authenticator.setClients(Arrays.asList(new ClientCertificateAuthenticator.Client()));
+    authenticator.init();
+  }
+
+  @Test
+  public void mapByFingerprintTest() {
+    ClientCertificateAuthenticator.Client client = new ClientCertificateAuthenticator.Client();
+    client.setFingerprint(ClientCertificateAuthenticator.fingerprint(certificate).toUpperCase());
+    client.setRole("ROLE_ADMIN");
+
+    ClientCertificateAuthenticator authenticator = new ClientCertificateAuthenticator();
+    authenticator.setClients(Arrays.asList(client));
+
+    Authentication authentication = authenticator.authenticate(request());
+    assertNotNull(authentication);
+    assertEquals("ROLE_ADMIN", authentication.getAuthorities().iterator().next().getAuthority());
+  }
+
+  @Test
+  public void unmappedCertificateTest() {
+    ClientCertificateAuthenticator.Client client = new ClientCertificateAuthenticator.Client();
+    client.setFingerprint("cd:f8:fd:64:00");
+
+    ClientCertificateAuthenticator authenticator = new ClientCertificateAuthenticator();
+    authenticator.setClients(Arrays.asList(client));
+
+    assertNull(authenticator.authenticate(request()));
+    assertNull(authenticator.authenticate(new MockHttpServletRequest()));
+  }
+
+  private MockHttpServletRequest request() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.setAttribute("javax.servlet.request.X509Certificate",
+        new X509Certificate[] {certificate});
+    return request;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.nimbusds.jwt.SignedJWT;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.auth.BearerTokenAuthenticator;
+import edu.kit.scc.auth.ServiceTokenIssuer;
+import edu.kit.scc.auth.TokenPrincipal;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class ServiceTokenIssuerTest {
+
+  @Autowired
+  private ServiceTokenIssuer serviceTokenIssuer;
+
+  @Autowired
+  private BearerTokenAuthenticator bearerTokenAuthenticator;
+
+  @Test
+  public void issueTokenTest() throws Exception {
+    String token = serviceTokenIssuer.issue("client", serviceTokenIssuer.getExpiresAt(0));
+    assertNotNull(token);
+    assertTrue(serviceTokenIssuer.isServiceToken(token));
+
+    TokenPrincipal tokenPrincipal = serviceTokenIssuer.validate(SignedJWT.parse(token));
+    assertNotNull(tokenPrincipal);
+    assertEquals("client", tokenPrincipal.getPrincipal());
+    assertEquals("ROLE_CLIENT", tokenPrincipal.getRole());
+
+    tokenPrincipal = bearerTokenAuthenticator.resolveToken(token);
+    assertNotNull(tokenPrincipal);
+    assertEquals("ROLE_CLIENT", tokenPrincipal.getRole());
+  }
+
+  @Test
+  public void rejectTokenTest() throws Exception {
+    String token = serviceTokenIssuer.issue("client", serviceTokenIssuer.getExpiresAt(0));
+    String tampered = token.substring(0, token.length() - 4)
+        + (token.endsWith("AAAA") ? "BBBB" : "AAAA");
+    assertNull(serviceTokenIssuer.validate(SignedJWT.parse(tampered)));
+    assertNull(bearerTokenAuthenticator.resolveToken(tampered));
+
+    long ttl = serviceTokenIssuer.getTtl();
+    ReflectionTestUtils.setField(serviceTokenIssuer, "ttl", -1L);
+    try {
+      String expired = serviceTokenIssuer.issue("client", serviceTokenIssuer.getExpiresAt(0));
+      assertNull(serviceTokenIssuer.validate(SignedJWT.parse(expired)));
+    } finally {
+      ReflectionTestUtils.setField(serviceTokenIssuer, "ttl", ttl);
+    }
+
+    assertFalse(serviceTokenIssuer.isServiceToken("opaque-token"));
+  }
+
+  @Test
+  public void capExpirationTest() throws Exception {
+    long now = System.currentTimeMillis();
+    long presentedExpiresAt = now + 10000;
+    assertEquals(presentedExpiresAt, serviceTokenIssuer.getExpiresAt(presentedExpiresAt));
+
+    long expiresAt = serviceTokenIssuer.getExpiresAt(0);
+    assertTrue(expiresAt >= now + serviceTokenIssuer.getTtl() * 1000);
+    assertTrue(serviceTokenIssuer.getExpiresAt(expiresAt + 60000) < expiresAt + 60000);
+
+    String token = serviceTokenIssuer.issue("client", presentedExpiresAt);
+    TokenPrincipal tokenPrincipal = serviceTokenIssuer.validate(SignedJWT.parse(token));
+    assertNotNull(tokenPrincipal);
+    assertEquals(presentedExpiresAt / 1000, tokenPrincipal.getExpiresAt() / 1000);
+  }
+
+  @Test
+  public void disabledWithoutSecretTest() throws Exception {
+    String token = serviceTokenIssuer.issue("client", serviceTokenIssuer.getExpiresAt(0));
+
+    ServiceTokenIssuer disabled = new ServiceTokenIssuer();
+    ReflectionTestUtils.setField(disabled, "issuer", "urn:idh:service-token");
+    ReflectionTestUtils.setField(disabled, "secret", "");
+    disabled.init();
+    assertFalse(disabled.isEnabled());
+    assertNull(disabled.issue("client", disabled.getExpiresAt(0)));
+    assertNull(disabled.validate(SignedJWT.parse(token)));
+  }
+
+  @Test(expected = Exception.class)
+  public void rejectShortSecretTest() throws Exception {
+    ServiceTokenIssuer issuer = new ServiceTokenIssuer();
+    ReflectionTestUtils.setField(issuer, "secret", "too-short");
+    issuer.init();
+  }
+}
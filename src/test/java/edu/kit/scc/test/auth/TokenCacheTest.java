@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.auth.TokenCache;
+import edu.kit.scc.auth.TokenPrincipal;
+import edu.kit.scc.redis.RedisClient;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.UUID;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class TokenCacheTest {
+
+  @Autowired
+  private TokenCache tokenCache;
+
+  @Autowired
+  private RedisClient redisClient;
+
+  @Test
+  public void cachedTokenTest() {
+    String digest = TokenCache.digest(UUID.randomUUID().toString());
+    long hits = tokenCache.getHits();
+    long misses = tokenCache.getMisses();
+
+    assertNull(tokenCache.get(digest));
+
+    tokenCache.put(digest, new TokenPrincipal("subject", "ROLE_USER", 0));
+    TokenPrincipal cached = tokenCache.get(digest);
+
+    assertNotNull(cached);
+    assertEquals("subject", cached.getPrincipal());
+    assertEquals(hits + 1, tokenCache.getHits());
+    assertEquals(misses + 1, tokenCache.getMisses());
+  }
+
+  @Test
+  public void expiredTokenTest() {
+    String digest = TokenCache.digest(UUID.randomUUID().toString());
+
+    tokenCache.put(digest,
+        new TokenPrincipal("client", "ROLE_CLIENT", System.currentTimeMillis() - 1000));
+
+    assertNull(tokenCache.get(digest));
+  }
+
+  @Test
+  public void redisTokenTest() {
+    String digest = TokenCache.digest(UUID.randomUUID().toString());
+
+    tokenCache.put(digest, new TokenPrincipal("subject", "ROLE_USER", 0));
+    assertNotNull(redisClient.getToken(digest));
+
+    // simulate another node without a local entry
+    tokenCache.invalidate(digest);
+    long redisHits = tokenCache.getRedisHits();
+    TokenPrincipal cached = tokenCache.get(digest);
+
+    assertNotNull(cached);
+    assertEquals("ROLE_USER", cached.getRole());
+    assertEquals(redisHits + 1, tokenCache.getRedisHits());
+  }
+
+  @Test
+  public void evictionTest() {
+    TokenCache cache = new TokenCache();
+    ReflectionTestUtils.setField(cache, "maxSize", 2);
+    ReflectionTestUtils.setField(cache, "maxTtl", 300L);
+    ReflectionTestUtils.setField(cache, "negativeTtl", 30L);
+
+    cache.put("first", new TokenPrincipal("first", "ROLE_USER", 0));
+    cache.put("second", new TokenPrincipal("second", "ROLE_USER", 0));
+    assertNotNull(cache.get("first"));
+    cache.put("third", new TokenPrincipal("third", "ROLE_USER", 0));
+
+    // the least recently used token is evicted
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get("second"));
+    assertNotNull(cache.get("first"));
+    assertNotNull(cache.get("third"));
+
+    // the earliest rejection is dropped first
+    cache.reject("first");
+    cache.reject("second");
+    cache.reject("first");
+    cache.reject("third");
+    assertTrue(cache.isRejected("first"));
+    assertTrue(!cache.isRejected("second"));
+    assertTrue(cache.isRejected("third"));
+  }
+
+  @Test
+  public void digestTest() {
+    String token = UUID.randomUUID().toString();
+
+    assertEquals(TokenCache.digest(token), TokenCache.digest(token));
+    assertTrue(!TokenCache.digest(token).contains(token));
+  }
+}
@@ -9,13 +9,21 @@
 
 package edu.kit.scc.test.http;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.sun.net.httpserver.HttpServer;
+
 import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.http.CircuitBreaker;
+import edu.kit.scc.http.CustomUrlConnection;
 import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.http.HttpEndpointProperties;
 import edu.kit.scc.http.HttpResponse;
+import edu.kit.scc.http.HttpResponseCache;
+import edu.kit.scc.http.StreamHandler;
 
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
@@ -26,8 +34,26 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
@@ -38,6 +64,9 @@ public class HttpClientTest {
   @Autowired
   private HttpClient httpClient;
 
+  @Autowired
+  private HttpEndpointProperties endpointProperties;
+
   protected static String httpUrl = "http://www.kit.edu";
   protected static String httpsUrl = "https://tools.ietf.org/html/rfc7644";
 
@@ -184,4 +213,315 @@ public class HttpClientTest {
     // assertNotNull(response);
     // assertTrue(response.getStatusCode() == 200);
   }
+
+  @Test
+  public void keepAliveTest() throws Exception {
+    Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      for (int i = 0; i < 5; i++) {
+        HttpResponse response = httpClient.makeHttpGetRequest(url);
+        assertNotNull(response);
+        assertEquals("ok", response.getResponseString());
+      }
+      // all requests on one pooled connection
+      assertEquals(1, clientPorts.size());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void errorStatusTest() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      assertNull(httpClient.makeHttpGetRequest(url));
+      assertNull(httpClient.makeHttpPostRequest("body", url));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void asyncRequestTest() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      int status = exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200;
+      byte[] body = exchange.getRequestMethod().getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      CompletableFuture<HttpResponse> get = httpClient.makeHttpGetRequestAsync(url + "/");
+      CompletableFuture<HttpResponse> post =
+          httpClient.makeHttpPostRequestAsync("body", url + "/");
+      CompletableFuture<HttpResponse> missing =
+          httpClient.makeHttpGetRequestAsync(url + "/missing");
+
+      assertEquals("GET", get.get(5, TimeUnit.SECONDS).getResponseString());
+      assertEquals("POST", post.get(5, TimeUnit.SECONDS).getResponseString());
+      assertNull(missing.get(5, TimeUnit.SECONDS));
+      assertNull(httpClient.makeHttpGetRequestAsync("invalid").get(5, TimeUnit.SECONDS));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void streamRequestTest() throws Exception {
+    String body = "line 1\nline 2\n";
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      int status = exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200;
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, bytes.length);
+      exchange.getResponseBody().write(bytes);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      StreamHandler<String> handler = in -> StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+
+      assertEquals(body, httpClient.streamHttpGetRequest(url + "/", handler));
+      assertNull(httpClient.streamHttpGetRequest(url + "/missing", handler));
+      // an unread stream is released as well
+      for (int i = 0; i < 5; i++) {
+        assertEquals("", httpClient.streamHttpGetRequest(url + "/", in -> ""));
+      }
+      assertEquals(body, httpClient.streamHttpGetRequest(url + "/", handler));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void compressionTest() throws Exception {
+    String body = "compressed\n";
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String response = body;
+      if (exchange.getRequestMethod().equals("POST")) {
+        InputStream in = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(encoding)) {
+          in = new GZIPInputStream(in);
+        }
+        response = encoding + ":" + StreamUtils.copyToByteArray(in).length;
+      }
+      String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      assertTrue(acceptEncoding.contains("gzip"));
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+        out.write(response.getBytes(StandardCharsets.UTF_8));
+      }
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      assertEquals(body, httpClient.makeHttpGetRequest(url).getResponseString());
+      assertEquals(body,
+          httpClient.makeHttpGetRequestAsync(url).get(5, TimeUnit.SECONDS).getResponseString());
+      assertEquals(body, httpClient.streamHttpGetRequest(url,
+          in -> StreamUtils.copyToString(in, StandardCharsets.UTF_8)));
+
+      // only bodies above the threshold are compressed
+      assertEquals("null:5", httpClient.makeHttpPostRequest("small", url).getResponseString());
+      char[] large = new char[2048];
+      Arrays.fill(large, 'a');
+      assertEquals("gzip:2048",
+          httpClient.makeHttpPostRequest(new String(large), url).getResponseString());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void retryTest() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      // every third request succeeds
+      int status = requests.incrementAndGet() % 3 == 0 ? 200 : 503;
+      byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      assertNotNull(httpClient.makeHttpGetRequest(url));
+      assertEquals(3, requests.get());
+
+      // POST requests are not retried
+      assertNull(httpClient.makeHttpPostRequest("body", url));
+      assertEquals(4, requests.get());
+
+      assertNotNull(httpClient.makeHttpGetRequestAsync(url).get(5, TimeUnit.SECONDS));
+      assertEquals(6, requests.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/", exchange -> {
+      try {
+        Thread.sleep(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      long start = System.currentTimeMillis();
+      assertNull(httpClient.makeHttpPostRequest("body", url));
+      // read timeout for localhost is one second
+      assertTrue(System.currentTimeMillis() - start < 4000);
+
+      HttpURLConnection connection = CustomUrlConnection.getHttpConnection(url, endpointProperties);
+      assertEquals(1000, connection.getReadTimeout());
+      assertEquals(endpointProperties.getConnectTimeout(), connection.getConnectTimeout());
+    } finally {
+      server.stop(0);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void circuitBreakerTest() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    AtomicBoolean healthy = new AtomicBoolean(false);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      requests.incrementAndGet();
+      exchange.sendResponseHeaders(healthy.get() ? 200 : 500, -1);
+      exchange.close();
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort() + "/";
+      CircuitBreaker circuitBreaker = httpClient.getCircuitBreaker(url);
+      assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+      // three failed attempts open the circuit
+      assertNull(httpClient.makeHttpGetRequest(url));
+      assertEquals(3, requests.get());
+      assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+      // requests fail fast while open
+      assertNull(httpClient.makeHttpGetRequest(url));
+      assertNull(httpClient.makeHttpGetRequestAsync(url).get(5, TimeUnit.SECONDS));
+      assertEquals(3, requests.get());
+      assertEquals(2, circuitBreaker.getRejections());
+
+      // a successful trial request closes the circuit after the open time
+      healthy.set(true);
+      Thread.sleep(1100);
+      assertNotNull(httpClient.makeHttpGetRequest(url));
+      assertEquals(4, requests.get());
+      assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+      assertEquals(1, circuitBreaker.getOpened());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void responseCacheTest() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      requests.incrementAndGet();
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals("/fresh")) {
+        exchange.getResponseHeaders().set("Cache-Control", "private, max-age=60");
+      } else if (path.equals("/etag")) {
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+          exchange.close();
+          return;
+        }
+      } else {
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+      }
+      byte[] body = path.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    HttpResponseCache responseCache = httpClient.getResponseCache();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      long revalidations = responseCache.getRevalidations();
+
+      // fresh responses are served from the cache
+      assertEquals("/fresh", httpClient.makeCachedGetRequest(url + "/fresh").getResponseString());
+      assertEquals("/fresh", httpClient.makeCachedGetRequest(url + "/fresh").getResponseString());
+      assertEquals(1, requests.get());
+
+      // only requests opting in are cached
+      assertNotNull(httpClient.makeHttpGetRequest(url + "/fresh"));
+      assertNotNull(httpClient.makeHttpGetRequestAsync(url + "/fresh").get(5, TimeUnit.SECONDS));
+      assertNotNull(httpClient.makeHttpGetRequest("user", "password", url + "/fresh"));
+      assertEquals(4, requests.get());
+
+      // stale responses are revalidated
+      assertEquals("/etag", httpClient.makeCachedGetRequest(url + "/etag").getResponseString());
+      assertEquals("/etag", httpClient.makeCachedGetRequest(url + "/etag").getResponseString());
+      assertEquals("/etag", httpClient.makeCachedGetRequest(url + "/etag").getResponseString());
+      assertEquals(7, requests.get());
+      assertEquals(revalidations + 2, responseCache.getRevalidations());
+
+      httpClient.makeCachedGetRequest(url + "/nostore");
+      httpClient.makeCachedGetRequest(url + "/nostore");
+      assertEquals(9, requests.get());
+
+      // the least recently used response is evicted
+      ReflectionTestUtils.setField(httpClient, "responseCache", new HttpResponseCache(2));
+      httpClient.makeCachedGetRequest(url + "/fresh?1");
+      httpClient.makeCachedGetRequest(url + "/fresh?2");
+      httpClient.makeCachedGetRequest(url + "/fresh?1");
+      httpClient.makeCachedGetRequest(url + "/fresh?3");
+      assertEquals(12, requests.get());
+      httpClient.makeCachedGetRequest(url + "/fresh?1");
+      assertEquals(12, requests.get());
+      httpClient.makeCachedGetRequest(url + "/fresh?2");
+      assertEquals(13, requests.get());
+    } finally {
+      ReflectionTestUtils.setField(httpClient, "responseCache", responseCache);
+      server.stop(0);
+    }
+  }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.http.SslContextRegistry;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class SslContextRegistryTest {
+
+  @Test
+  public void cachedContextTest() {
+    SSLContext defaultContext = SslContextRegistry.getDefaultContext();
+    assertNotNull(defaultContext);
+    assertSame(defaultContext, SslContextRegistry.getDefaultContext());
+    assertSame(SslContextRegistry.getDefaultSocketFactory(),
+        SslContextRegistry.getDefaultSocketFactory());
+
+    SSLContext trustAllContext = SslContextRegistry.getTrustAllContext();
+    assertNotNull(trustAllContext);
+    assertNotSame(defaultContext, trustAllContext);
+    assertSame(trustAllContext, SslContextRegistry.getTrustAllContext());
+    assertSame(SslContextRegistry.getTrustAllSocketFactory(),
+        SslContextRegistry.getTrustAllSocketFactory());
+
+    assertEquals(3600, trustAllContext.getClientSessionContext().getSessionTimeout());
+  }
+
+  @Test
+  public void certificateContextTest() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    try (InputStream in = new ClassPathResource("privateKey.store").getInputStream()) {
+      keyStore.load(in, "changeit".toCharArray());
+    }
+    String cert = "-----BEGIN CERTIFICATE-----\n"
+        + Base64.encodeBase64String(keyStore.getCertificate("testserver").getEncoded())
+        + "\n-----END CERTIFICATE-----\n";
+
+    SSLContext sslContext = SslContextRegistry.getContext(cert);
+    assertNotNull(sslContext);
+    assertSame(sslContext, SslContextRegistry.getContext(cert));
+    assertSame(SslContextRegistry.getSocketFactory(cert),
+        SslContextRegistry.getSocketFactory(cert));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void invalidCertificateTest() {
+    assertNull(SslContextRegistry.getContext("invalid"));
+    SslContextRegistry.getSocketFactory("invalid");
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.oidc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.oidc.JwtValidator;
+import edu.kit.scc.oidc.OidcDiscovery;
+import edu.kit.scc.oidc.OidcIssuer;
+import edu.kit.scc.oidc.OidcProperties;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Local file-based stand-in issuer for JWT validation and key rotation.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class JwtValidatorTest {
+
+  @Autowired
+  private JwtValidator jwtValidator;
+
+  @Autowired
+  private OidcDiscovery discovery;
+
+  @Value("${oidc.issuer}")
+  private String issuerUri;
+
+  @Value("${oidc.discovery}")
+  private String discoveryUri;
+
+  @Value("${oidc.jwks}")
+  private String jwksUri;
+
+  @Value("${oidc.clientid}")
+  private String clientId;
+
+  private Path issuerDirectory;
+
+  /**
+   * Writes the stand-in issuer's discovery document and configures its local key set.
+   * 
+   * @throws Exception on I/O errors
+   */
+  @Before
+  public void setUpEach() throws Exception {
+    issuerDirectory = Files.createTempDirectory("issuer");
+    JSONObject configuration = new JSONObject();
+    configuration.put("issuer", issuerUri);
+    publishConfiguration(configuration);
+
+    issuer().setDiscoveryUri(issuerDirectory.resolve("openid-configuration").toUri().toString());
+    issuer().setJwksUri(issuerDirectory.resolve("jwks.json").toUri().toString());
+  }
+
+  @After
+  public void cleanUp() {
+    issuer().setDiscoveryUri(discoveryUri);
+    issuer().setJwksUri(jwksUri);
+  }
+
+  @Test
+  public void validateTokenTest() throws Exception {
+    RSAKey key = publishKey("key1");
+    issuer().refresh();
+
+    SignedJWT jwt = jwtValidator.parse(sign(key, issuerUri, 60000));
+    assertTrue(jwtValidator.canVerify(jwt, issuer()));
+
+    assertEquals(issuer(), jwtValidator.getIssuer(jwt));
+
+    JWTClaimsSet claims = jwtValidator.validate(jwt, issuer());
+    assertNotNull(claims);
+    assertEquals("subject", claims.getSubject());
+  }
+
+  @Test
+  public void rejectTokenTest() throws Exception {
+    RSAKey key = publishKey("key1");
+    issuer().refresh();
+
+    assertNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, -120000)), issuer()));
+    assertNull(jwtValidator.validate(
+        jwtValidator.parse(sign(key, "https://other.example.org/", 60000)), issuer()));
+    assertNull(jwtValidator
+        .getIssuer(jwtValidator.parse(sign(key, "https://other.example.org/", 60000))));
+    assertNull(jwtValidator.parse("opaque-token"));
+  }
+
+  @Test
+  public void rejectInvalidTokenTest() throws Exception {
+    RSAKey key = publishKey("key1");
+    issuer().refresh();
+
+    // expired beyond the clock skew
+    assertNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, -120000)), issuer()));
+
+    // signed by another key with the same kid
+    RSAKey forgedKey = createKey("key1");
+    assertNull(jwtValidator.validate(jwtValidator.parse(sign(forgedKey, issuerUri, 60000)),
+        issuer()));
+
+    // unknown kid
+    RSAKey unknownKey = createKey("unknown");
+    SignedJWT unknownJwt = jwtValidator.parse(sign(unknownKey, issuerUri, 60000));
+    assertFalse(jwtValidator.canVerify(unknownJwt, issuer()));
+    assertNull(jwtValidator.validate(unknownJwt, issuer()));
+
+    // no audience, accepted only as the client id by default
+    assertNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, 60000, null)),
+        issuer()));
+
+    // wrong audience
+    String audience = (String) ReflectionTestUtils.getField(jwtValidator, "audience");
+    ReflectionTestUtils.setField(jwtValidator, "audience", "idh,other");
+    try {
+      assertNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, 60000, "unknown")),
+          issuer()));
+      assertNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, 60000)), issuer()));
+      assertNotNull(jwtValidator.validate(jwtValidator.parse(sign(key, issuerUri, 60000, "idh")),
+          issuer()));
+    } finally {
+      ReflectionTestUtils.setField(jwtValidator, "audience", audience);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void requireAudienceTest() {
+    OidcProperties.Issuer properties = new OidcProperties.Issuer();
+    properties.setIssuer(issuerUri);
+    OidcDiscovery withoutClient = new OidcDiscovery();
+    ReflectionTestUtils.setField(withoutClient, "issuers",
+        Arrays.asList(new OidcIssuer(properties, 60, null, null, null)));
+
+    JwtValidator validator = new JwtValidator();
+    ReflectionTestUtils.setField(validator, "discovery", withoutClient);
+    ReflectionTestUtils.setField(validator, "audience", "");
+    ReflectionTestUtils.setField(validator, "localValidation", true);
+    validator.init();
+  }
+
+  @Test
+  public void untrustedConfigurationTest() throws Exception {
+    RSAKey key = publishKey("key1");
+    issuer().refresh();
+    SignedJWT jwt = jwtValidator.parse(sign(key, issuerUri, 60000));
+    assertTrue(jwtValidator.canVerify(jwt, issuer()));
+
+    // metadata of another issuer is rejected, the known keys stay in use
+    JSONObject configuration = new JSONObject();
+    configuration.put("issuer", "https://other.example.org/");
+    publishConfiguration(configuration);
+    publishKey("key2");
+    issuer().refresh();
+    assertEquals(issuerUri, issuer().getIssuer());
+    assertTrue(jwtValidator.canVerify(jwt, issuer()));
+
+    // discovered key sets must be https
+    Path jwks = Files.createTempFile("jwks", ".json");
+    Files.write(jwks,
+        new JWKSet(createKey("key3")).toJSONObject(true).toString()
+            .getBytes(StandardCharsets.UTF_8));
+    configuration.put("issuer", issuerUri);
+    configuration.put("jwks_uri", jwks.toUri().toString());
+    publishConfiguration(configuration);
+    issuer().refresh();
+    assertTrue(jwtValidator.canVerify(jwt, issuer()));
+    assertNull(issuer().getKey("key3"));
+  }
+
+  @Test
+  public void keyRotationTest() throws Exception {
+    publishKey("key1");
+    issuer().refresh();
+
+    RSAKey rotatedKey = publishKey("key2");
+    SignedJWT jwt = jwtValidator.parse(sign(rotatedKey, issuerUri, 60000));
+
+    // unknown key triggers a background refresh
+    assertFalse(jwtValidator.canVerify(jwt, issuer()));
+    for (int i = 0; i < 50 && !jwtValidator.canVerify(jwt, issuer()); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(jwtValidator.canVerify(jwt, issuer()));
+    assertNotNull(jwtValidator.validate(jwt, issuer()));
+  }
+
+  private OidcIssuer issuer() {
+    return discovery.getDefaultIssuer();
+  }
+
+  private RSAKey createKey(String kid) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+
+    return new RSAKey.Builder((RSAPublicKey) keyPair.getPublic())
+        .privateKey((RSAPrivateKey) keyPair.getPrivate()).keyID(kid).build();
+  }
+
+  private void publishConfiguration(JSONObject configuration) throws Exception {
+    Files.write(issuerDirectory.resolve("openid-configuration"),
+        configuration.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RSAKey publishKey(String kid) throws Exception {
+    RSAKey key = createKey(kid);
+    Files.write(issuerDirectory.resolve("jwks.json"),
+        new JWKSet(key).toJSONObject(true).toString().getBytes(StandardCharsets.UTF_8));
+    return key;
+  }
+
+  private String sign(RSAKey key, String issuer, long lifetime) throws Exception {
+    return sign(key, issuer, lifetime, clientId);
+  }
+
+  private String sign(RSAKey key, String issuer, long lifetime, String audience)
+      throws Exception {
+    JWTClaimsSet claims = new JWTClaimsSet.Builder().subject("subject").issuer(issuer)
+        .audience(audience).expirationTime(new Date(System.currentTimeMillis() + lifetime))
+        .build();
+    SignedJWT jwt =
+        new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+            claims);
+    jwt.sign(new RSASSASigner(key.toRSAPrivateKey()));
+    return jwt.serialize();
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.oidc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.http.HttpClient;
+import edu.kit.scc.oidc.OidcClient;
+import edu.kit.scc.oidc.OidcIssuer;
+import edu.kit.scc.oidc.OidcProperties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.StreamUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stub token endpoint for the client credentials token cache.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class OidcClientTest {
+
+  @Autowired
+  private OidcClient oidcClient;
+
+  @Autowired
+  private HttpClient httpClient;
+
+  private HttpServer server;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private volatile long expiresIn = 3600;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/token", exchange -> {
+      String body = StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+      int status = body.contains("client_secret=secret") ? 200 : 401;
+      try {
+        // slow enough for concurrent callers to pile up
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] response = ("{\"access_token\":\"token" + requests.incrementAndGet()
+          + "\",\"token_type\":\"Bearer\",\"expires_in\":" + expiresIn + "}")
+              .getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void singleFlightTest() throws Exception {
+    OidcIssuer issuer = createIssuer("single", "secret");
+    long hits = oidcClient.getHits();
+
+    List<CompletableFuture<String>> tokens = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      tokens.add(oidcClient.getAccessToken(issuer, "scim:read"));
+    }
+    for (CompletableFuture<String> token : tokens) {
+      assertEquals("token1", token.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, requests.get());
+
+    // served from the cache
+    assertEquals("token1", oidcClient.getAccessToken(issuer, "scim:read").get());
+    assertEquals(1, requests.get());
+    assertEquals(hits + 1, oidcClient.getHits());
+
+    // scopes are cached separately
+    assertEquals("token2", oidcClient.getAccessToken(issuer, "scim:write").get());
+  }
+
+  @Test
+  public void refreshAheadTest() throws Exception {
+    OidcIssuer issuer = createIssuer("refresh", "secret");
+    // refreshed at half of the short lifetime
+    expiresIn = 2;
+
+    assertEquals("token1", oidcClient.getAccessToken(issuer, "scim:read").get());
+    Thread.sleep(1100);
+
+    // the valid token is returned while the new one is requested in the background
+    long start = System.currentTimeMillis();
+    assertEquals("token1", oidcClient.getAccessToken(issuer, "scim:read").get());
+    assertTrue(System.currentTimeMillis() - start < 200);
+
+    Thread.sleep(500);
+    assertEquals("token2", oidcClient.getAccessToken(issuer, "scim:read").get());
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void failedRequestTest() throws Exception {
+    OidcIssuer issuer = createIssuer("failed", "wrong");
+
+    assertNull(oidcClient.getAccessToken(issuer, "scim:read").get(5, TimeUnit.SECONDS));
+    // failures are not cached
+    assertNull(oidcClient.getAccessToken(issuer, "scim:read").get(5, TimeUnit.SECONDS));
+    assertEquals(2, requests.get());
+  }
+
+  private OidcIssuer createIssuer(String name, String clientSecret) {
+    OidcProperties.Issuer properties = new OidcProperties.Issuer();
+    properties.setIssuer("http://localhost/" + name);
+    properties.setToken("http://localhost:" + server.getAddress().getPort() + "/token");
+    properties.setClientid("client");
+    properties.setClientsecret(clientSecret);
+    return new OidcIssuer(properties, 60, httpClient, null, null);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.redis.NumberBlockAllocator;
+import edu.kit.scc.redis.NumberRangeExhaustedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class NumberBlockAllocatorTest {
+
+  private static final String COUNTER = "test:blockNumber";
+
+  @Autowired
+  private StringRedisTemplate template;
+
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  @Before
+  @After
+  public void cleanUp() {
+    template.delete(Arrays.asList(COUNTER, COUNTER + ":free"));
+  }
+
+  @Test
+  public void allocateTest() throws Exception {
+    NumberBlockAllocator allocator =
+        new NumberBlockAllocator(template, taskScheduler, COUNTER, "1000", "2000", 10);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Long>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < 95; i++) {
+        futures.add(executor.submit(allocator::allocate));
+      }
+      Set<Long> numbers = new HashSet<>();
+      for (Future<Long> future : futures) {
+        numbers.add(future.get());
+      }
+      assertEquals(95, numbers.size());
+      for (long number : numbers) {
+        assertTrue(number > 1000 && number <= 1100);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // whole blocks are leased from the shared counter
+    assertEquals(0, Long.valueOf(template.opsForValue().get(COUNTER)) % 10);
+    assertTrue(allocator.getLeases() >= 10);
+  }
+
+  @Test
+  public void releaseTest() {
+    NumberBlockAllocator allocator =
+        new NumberBlockAllocator(template, taskScheduler, COUNTER, "1000", "2000", 10);
+    assertEquals(1001, allocator.allocate());
+    assertEquals(1002, allocator.allocate());
+    allocator.free(1002);
+    allocator.release();
+
+    // another node leases the returned remainder first
+    NumberBlockAllocator other =
+        new NumberBlockAllocator(template, taskScheduler, COUNTER, "1000", "2000", 10);
+    assertEquals(1003, other.allocate());
+  }
+
+  @Test
+  public void exhaustedTest() {
+    NumberBlockAllocator allocator =
+        new NumberBlockAllocator(template, taskScheduler, COUNTER, "1000", "1015", 10);
+    for (long number = 1001; number <= 1015; number++) {
+      assertEquals(number, allocator.allocate());
+    }
+    try {
+      allocator.allocate();
+      fail();
+    } catch (NumberRangeExhaustedException e) {
+      assertEquals("1015", template.opsForValue().get(COUNTER));
+    }
+  }
+
+  @Test
+  public void redisFailureTest() {
+    JedisConnectionFactory connectionFactory = new JedisConnectionFactory();
+    connectionFactory.setHostName("localhost");
+    connectionFactory.setPort(1);
+    connectionFactory.afterPropertiesSet();
+    try {
+      NumberBlockAllocator allocator = new NumberBlockAllocator(
+          new StringRedisTemplate(connectionFactory), taskScheduler, COUNTER, "1000", "2000", 10);
+      allocator.allocate();
+      fail();
+    } catch (DataAccessException e) {
+      // not reported as an exhausted range
+    } finally {
+      connectionFactory.destroy();
+    }
+  }
+
+  @Test
+  public void allocateAfterReleaseTest() {
+    NumberBlockAllocator allocator =
+        new NumberBlockAllocator(template, taskScheduler, COUNTER, "1000", "2000", 10);
+    assertEquals(1001, allocator.allocate());
+    allocator.release();
+    try {
+      allocator.allocate();
+      fail();
+    } catch (IllegalStateException e) {
+      // no block is leased after release
+      assertEquals("1010", template.opsForValue().get(COUNTER));
+      assertEquals(Arrays.asList("1002-1010"),
+          template.opsForList().range(COUNTER + ":free", 0, -1));
+    }
+  }
+}
@@ -9,34 +9,67 @@
 
 package edu.kit.scc.test.redis;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.redis.NumberBlockAllocator;
+import edu.kit.scc.redis.NumberRangeExhaustedException;
 import edu.kit.scc.redis.RedisClient;
+import edu.kit.scc.redis.UserState;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
 @ActiveProfiles("test")
 public class RedisClientTest {
 
-  @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(RedisClientTest.class);
 
   @Autowired
   private RedisClient redisClient;
 
+  @Autowired
+  private StringRedisTemplate template;
+
+  @Autowired
+  private TaskScheduler taskScheduler;
+
+  @Value("${ldap.uidNumber.start}")
+  private long minUidNumber;
+
+  @Value("${ldap.uidNumber.end}")
+  private String maxUidNumber;
+
   @Test
   public void createUserTest() {
     String uuid = UUID.randomUUID().toString();
@@ -50,4 +83,227 @@ public class RedisClientTest {
     // assertNull(uidNumber);
   }
 
+  @Test
+  public void getUidNumberTest() throws Exception {
+    String id = UUID.randomUUID().toString();
+    String uidNumber = redisClient.getUidNumber(id);
+
+    assertNotNull(uidNumber);
+    assertEquals(uidNumber, redisClient.getUidNumber(id));
+    assertEquals(uidNumber, template.opsForValue().get("user:" + id + ":uidNumber"));
+    assertTrue(Long.valueOf(uidNumber) > minUidNumber);
+  }
+
+  @Test
+  public void getGidNumberTest() {
+    String groupKey = UUID.randomUUID().toString();
+    String gidNumber = redisClient.getGidNumber(groupKey);
+
+    assertNotNull(gidNumber);
+    assertEquals(gidNumber, redisClient.getGidNumber(groupKey));
+    assertNotEquals(gidNumber, redisClient.getGidNumber(UUID.randomUUID().toString()));
+    assertEquals(gidNumber, template.opsForValue().get("group:" + groupKey + ":gidNumber"));
+  }
+
+  @Test
+  public void reserveGidNumbersTest() {
+    long gidNumber = Long.parseLong(redisClient.getGidNumber(UUID.randomUUID().toString()));
+    String first = String.valueOf(gidNumber + 1);
+    String second = String.valueOf(gidNumber + 2);
+    redisClient.reserveGidNumbers(Arrays.asList(first, second, "99999", "invalid", null));
+    try {
+      // numbers in use are skipped without moving the counter past the gaps
+      assertEquals(String.valueOf(gidNumber + 3),
+          redisClient.getGidNumber(UUID.randomUUID().toString()));
+      assertEquals(String.valueOf(gidNumber + 4),
+          redisClient.getGidNumber(UUID.randomUUID().toString()));
+      assertFalse(template.opsForSet().isMember("gidNumber:reserved", "99999"));
+    } finally {
+      template.opsForSet().remove("gidNumber:reserved", first, second);
+    }
+  }
+
+  @Test
+  public void concurrentUidNumberTest() throws Exception {
+    String sharedId = UUID.randomUUID().toString();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<String>> shared = new ArrayList<>();
+    List<Future<String>> distinct = new ArrayList<>();
+    try {
+      for (int i = 0; i < 20; i++) {
+        String id = UUID.randomUUID().toString();
+        shared.add(executor.submit(() -> redisClient.getUidNumber(sharedId)));
+        distinct.add(executor.submit(() -> redisClient.getUidNumber(id)));
+      }
+      Set<String> sharedNumbers = new HashSet<>();
+      for (Future<String> future : shared) {
+        sharedNumbers.add(future.get());
+      }
+      Set<String> uidNumbers = new HashSet<>();
+      for (Future<String> future : distinct) {
+        uidNumbers.add(future.get());
+      }
+      assertEquals(1, sharedNumbers.size());
+      assertEquals(20, uidNumbers.size());
+      assertFalse(uidNumbers.contains(sharedNumbers.iterator().next()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void exhaustedUidNumberTest() {
+    String counter = template.opsForValue().get("uidNumber");
+    String id = UUID.randomUUID().toString();
+    try {
+      template.opsForValue().set("uidNumber", maxUidNumber);
+      try {
+        redisClient.getUidNumber(id);
+        fail();
+      } catch (NumberRangeExhaustedException e) {
+        log.debug("{}", e.getMessage());
+      }
+      // the counter must not move past the end of the range
+      assertEquals(maxUidNumber, template.opsForValue().get("uidNumber"));
+      assertNull(template.opsForValue().get("user:" + id + ":uidNumber"));
+    } finally {
+      if (counter != null) {
+        template.opsForValue().set("uidNumber", counter);
+      } else {
+        template.delete("uidNumber");
+      }
+    }
+  }
+
+  @Test
+  public void identityHashesTest() {
+    // scope the migration to this test's keys
+    String tag = UUID.randomUUID().toString();
+    String externalId = "ou=users,ou=https://iam.example.org/:" + tag;
+    String id = tag + "-id";
+    template.opsForValue().set("user:" + externalId, id);
+    template.opsForValue().set("user:" + id + ":uidNumber", "12345");
+    template.opsForValue().set("user:" + id + ":homeDirectory", "/home/test");
+
+    ReflectionTestUtils.setField(redisClient, "identityHashes", true);
+    try {
+      // not yet migrated keys are still found
+      assertEquals(id, redisClient.createUser(externalId));
+      assertEquals("/home/test", redisClient.getUserHome(id));
+
+      // while the string keys are written, they are copied and kept for nodes still using them
+      assertEquals(3, redisClient.migrateIdentities("user:*" + tag + "*"));
+      assertEquals(id, template.opsForValue().get("user:" + externalId));
+      assertEquals("12345", template.opsForValue().get("user:" + id + ":uidNumber"));
+      assertEquals(id, template.opsForHash().get(RedisClient.identityKey(externalId), "id"));
+      assertEquals("12345", template.opsForHash().get(RedisClient.identityKey(id), "uid"));
+
+      redisClient.setUserHome(id, "/home/linked");
+      assertEquals("/home/linked", template.opsForValue().get("user:" + id + ":homeDirectory"));
+      assertEquals("/home/linked",
+          template.opsForHash().get(RedisClient.identityKey(id), "home"));
+
+      // a node still using string keys changes the uidNumber
+      template.opsForValue().set("user:" + id + ":uidNumber", "12346");
+      assertEquals("12346", redisClient.getUidNumber(id));
+
+      String newExternalId = tag + "-new";
+      String newId = redisClient.createUser(newExternalId);
+      assertEquals(newId, template.opsForValue().get("user:" + newExternalId));
+      String uidNumber = redisClient.getUidNumber(newId);
+      assertEquals(uidNumber, template.opsForValue().get("user:" + newId + ":uidNumber"));
+      assertEquals(uidNumber, template.opsForHash().get(RedisClient.identityKey(newId), "uid"));
+
+      // once no node uses the string keys any more, a last copy syncs the hashes
+      assertEquals(4, redisClient.migrateIdentities("user:*" + tag + "*"));
+      assertEquals("12346", template.opsForHash().get(RedisClient.identityKey(id), "uid"));
+
+      // after cut-over the string keys are moved, including the new user's id
+      ReflectionTestUtils.setField(redisClient, "legacyKeys", false);
+      assertEquals(4, redisClient.migrateIdentities("user:*" + tag + "*"));
+      assertFalse(template.hasKey("user:" + externalId));
+      assertFalse(template.hasKey("user:" + id + ":uidNumber"));
+      assertFalse(template.hasKey("user:" + id + ":homeDirectory"));
+
+      assertEquals(id, redisClient.createUser(externalId));
+      assertEquals("12346", redisClient.getUidNumber(id));
+      assertEquals("/home/linked", redisClient.getUserHome(id));
+
+      String cutOverId = redisClient.createUser(tag + "-cut-over");
+      assertNotNull(redisClient.getUidNumber(cutOverId));
+      assertTrue(template.hasKey(RedisClient.identityKey(cutOverId)));
+      assertFalse(template.hasKey("user:" + cutOverId + ":uidNumber"));
+    } finally {
+      ReflectionTestUtils.setField(redisClient, "identityHashes", false);
+      ReflectionTestUtils.setField(redisClient, "legacyKeys", true);
+    }
+  }
+
+  @Test
+  public void userStatesTest() {
+    userStates();
+    ReflectionTestUtils.setField(redisClient, "identityHashes", true);
+    try {
+      userStates();
+      ReflectionTestUtils.setField(redisClient, "legacyKeys", false);
+      userStates();
+    } finally {
+      ReflectionTestUtils.setField(redisClient, "identityHashes", false);
+      ReflectionTestUtils.setField(redisClient, "legacyKeys", true);
+    }
+  }
+
+  private void userStates() {
+    String id1 = UUID.randomUUID().toString();
+    String id2 = UUID.randomUUID().toString();
+    String missing = UUID.randomUUID().toString();
+    Map<String, UserState> states = new HashMap<>();
+    states.put(id1, new UserState("1001", "/home/one"));
+    states.put(id2, new UserState("1002", null));
+    redisClient.setUserStates(states);
+
+    Map<String, UserState> stored = redisClient.getUserStates(Arrays.asList(id1, id2, missing));
+    assertEquals(3, stored.size());
+    assertEquals("1001", stored.get(id1).getUidNumber());
+    assertEquals("/home/one", stored.get(id1).getHomeDirectory());
+    assertEquals("1002", stored.get(id2).getUidNumber());
+    assertNull(stored.get(id2).getHomeDirectory());
+    assertNull(stored.get(missing).getUidNumber());
+    assertEquals("/home/one", redisClient.getUserHome(id1));
+  }
+
+  @Test
+  public void blockUidNumberTest() {
+    String counter = "test:uidNumberBlock";
+    template.delete(Arrays.asList(counter, counter + ":free"));
+    // two numbers in total
+    NumberBlockAllocator allocator =
+        new NumberBlockAllocator(template, taskScheduler, counter, "500", "502", 2);
+    ReflectionTestUtils.setField(redisClient, "uidNumberAllocator", allocator);
+    try {
+      String id = UUID.randomUUID().toString();
+      String uidNumber = redisClient.getUidNumber(id);
+      assertEquals("501", uidNumber);
+
+      // lookups of an existing user do not consume numbers
+      for (int i = 0; i < 5; i++) {
+        assertEquals(uidNumber, redisClient.getUidNumber(id));
+      }
+      assertEquals("502", redisClient.getUidNumber(UUID.randomUUID().toString()));
+
+      try {
+        redisClient.getUidNumber(UUID.randomUUID().toString());
+        fail();
+      } catch (NumberRangeExhaustedException e) {
+        log.debug("{}", e.getMessage());
+      }
+      // existing users are still found after exhaustion
+      assertEquals(uidNumber, redisClient.getUidNumber(id));
+      assertEquals(1, allocator.getLeases());
+    } finally {
+      ReflectionTestUtils.setField(redisClient, "uidNumberAllocator", null);
+      allocator.release();
+      template.delete(Arrays.asList(counter, counter + ":free"));
+    }
+  }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.scim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.scim.ScimClient;
+import edu.kit.scc.scim.ScimException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stub SCIM providers with seven users and at most two users per page.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class ScimClientTest {
+
+  private static final int USERS = 7;
+
+  private static final int MAX_PAGE_SIZE = 2;
+
+  @Autowired
+  private ScimClient scimClient;
+
+  private HttpServer server;
+
+  private String url;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private final AtomicInteger active = new AtomicInteger();
+
+  private final AtomicInteger maxActive = new AtomicInteger();
+
+  private int searchConcurrency;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/filter/Users", exchange -> respond(exchange, true));
+    server.createContext("/nofilter/Users", exchange -> {
+      if (exchange.getRequestURI().getRawQuery().contains("filter=")) {
+        requests.incrementAndGet();
+        byte[] body = "{\"scimType\":\"invalidFilter\",\"status\":\"400\"}"
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(400, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+        return;
+      }
+      respond(exchange, false);
+    });
+    server.createContext("/notimplemented/Users", exchange -> {
+      if (exchange.getRequestURI().getRawQuery().contains("filter=")) {
+        requests.incrementAndGet();
+        exchange.sendResponseHeaders(501, -1);
+        exchange.close();
+        return;
+      }
+      respond(exchange, false);
+    });
+    server.createContext("/forbidden/Users", exchange -> {
+      requests.incrementAndGet();
+      exchange.sendResponseHeaders(403, -1);
+      exchange.close();
+    });
+    server.createContext("/failingpage/Users", exchange -> {
+      if (!exchange.getRequestURI().getRawQuery().contains("startIndex=1&")) {
+        requests.incrementAndGet();
+        exchange.sendResponseHeaders(403, -1);
+        exchange.close();
+        return;
+      }
+      respond(exchange, false);
+    });
+    server.createContext("/ignore/Users", exchange -> respond(exchange, false));
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort();
+    searchConcurrency = (Integer) ReflectionTestUtils.getField(scimClient, "searchConcurrency");
+    // one page at a time, so that the request counts are deterministic
+    ReflectionTestUtils.setField(scimClient, "searchConcurrency", 1);
+  }
+
+  @After
+  public void tearDown() {
+    ReflectionTestUtils.setField(scimClient, "searchConcurrency", searchConcurrency);
+    server.stop(0);
+  }
+
+  @Test
+  public void filterTest() throws Exception {
+    JsonNode user = find("/filter/Users", "user7");
+    assertNotNull(user);
+    assertEquals("7", user.get("id").asText());
+    assertEquals(1, requests.get());
+
+    assertNull(find("/filter/Users", "user9"));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void unsupportedFilterTest() throws Exception {
+    JsonNode user = find("/nofilter/Users", "user7");
+    assertNotNull(user);
+    assertEquals("7", user.get("id").asText());
+    // rejected filter, first page, then the pages at 3, 5 and 7
+    assertEquals(5, requests.get());
+
+    assertNull(find("/nofilter/Users", "user9"));
+  }
+
+  @Test
+  public void notImplementedFilterTest() throws Exception {
+    assertEquals("7", find("/notimplemented/Users", "user7").get("id").asText());
+    assertEquals(5, requests.get());
+  }
+
+  @Test
+  public void failedRequestTest() throws Exception {
+    // errors other than a rejected filter fail the lookup instead of searching all pages
+    assertFailed("/forbidden/Users", "user7");
+    assertEquals(1, requests.get());
+
+    // a failed page may have held the match
+    assertFailed("/failingpage/Users", "user9");
+  }
+
+  @Test
+  public void boundedSearchTest() throws Exception {
+    // the search stops at the first match, the page at 3
+    assertEquals("4", find("/ignore/Users", "user4").get("id").asText());
+    assertEquals(2, requests.get());
+    assertEquals(1, maxActive.get());
+
+    // all pages are searched, no more than two at a time
+    ReflectionTestUtils.setField(scimClient, "searchConcurrency", 2);
+    assertNull(find("/ignore/Users", "user9"));
+    assertEquals(6, requests.get());
+    assertTrue(maxActive.get() <= 2);
+  }
+
+  @Test
+  public void ignoredFilterTest() throws Exception {
+    assertEquals("1", find("/ignore/Users", "user1").get("id").asText());
+    assertEquals(1, requests.get());
+
+    // the pages at 3 and 5, the search stops at the match
+    assertEquals("6", find("/ignore/Users", "user6").get("id").asText());
+    assertEquals(4, requests.get());
+  }
+
+  private void assertFailed(String path, String displayName) throws Exception {
+    try {
+      find(path, displayName);
+      fail("lookup did not fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ScimException);
+    }
+  }
+
+  private JsonNode find(String path, String displayName) throws Exception {
+    return scimClient.findResource("token", url + path, "displayName", displayName).get(5,
+        TimeUnit.SECONDS);
+  }
+
+  private void respond(HttpExchange exchange, boolean supportsFilter) throws IOException {
+    requests.incrementAndGet();
+    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+    try {
+      respondList(exchange, supportsFilter);
+    } finally {
+      active.decrementAndGet();
+    }
+  }
+
+  private void respondList(HttpExchange exchange, boolean supportsFilter) throws IOException {
+    Map<String, String> query = new HashMap<>();
+    for (String parameter : exchange.getRequestURI().getRawQuery().split("&")) {
+      String[] pair = parameter.split("=", 2);
+      query.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+    }
+    int startIndex = Integer.parseInt(query.getOrDefault("startIndex", "1"));
+    int count = Math.min(Integer.parseInt(query.getOrDefault("count", "100")), MAX_PAGE_SIZE);
+
+    JSONArray resources = new JSONArray();
+    int totalResults = USERS;
+    if (supportsFilter && query.containsKey("filter")) {
+      // displayName eq "<name>"
+      String name = query.get("filter").replaceAll(".*\"(.*)\"", "$1");
+      totalResults = 0;
+      for (int i = 1; i <= USERS; i++) {
+        if (name.equals("user" + i)) {
+          resources.put(user(i));
+          totalResults = 1;
+        }
+      }
+    } else {
+      for (int i = startIndex; i < startIndex + count && i <= USERS; i++) {
+        resources.put(user(i));
+      }
+    }
+    JSONObject list = new JSONObject();
+    list.put("totalResults", totalResults);
+    list.put("startIndex", startIndex);
+    list.put("itemsPerPage", resources.length());
+    list.put("Resources", resources);
+
+    byte[] body = list.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  private JSONObject user(int id) {
+    JSONObject user = new JSONObject();
+    user.put("id", String.valueOf(id));
+    user.put("displayName", "user" + id);
+    return user;
+  }
+}
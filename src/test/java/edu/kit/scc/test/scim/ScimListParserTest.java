@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.scim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.scim.ScimListParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class ScimListParserTest {
+
+  private static final String LIST_RESPONSE = "{\"schemas\":"
+      + "[\"urn:ietf:params:scim:api:messages:2.0:ListResponse\"],\"totalResults\":3,"
+      + "\"Resources\":[{\"id\":\"1\",\"displayName\":\"alice\",\"emails\":[{\"value\":\"a@b\"}]},"
+      + "{\"id\":\"2\",\"displayName\":\"bob\",\"meta\":{\"resourceType\":\"User\"}},"
+      + "{\"id\":\"3\",\"displayName\":\"carol\"}],\"itemsPerPage\":3}";
+
+  @Test
+  public void parseTest() throws IOException {
+    List<String> ids = new ArrayList<>();
+    int totalResults = ScimListParser.parse(stream(LIST_RESPONSE), resource -> {
+      ids.add(resource.get("id").asText());
+      return true;
+    });
+
+    assertEquals(3, totalResults);
+    assertEquals(3, ids.size());
+    assertEquals("3", ids.get(2));
+  }
+
+  @Test
+  public void stopParsingTest() throws IOException {
+    List<String> ids = new ArrayList<>();
+    ScimListParser.parse(stream(LIST_RESPONSE), resource -> {
+      ids.add(resource.get("id").asText());
+      return false;
+    });
+
+    assertEquals(1, ids.size());
+  }
+
+  @Test
+  public void findResourceTest() throws IOException {
+    JsonNode bob = ScimListParser.findResource(stream(LIST_RESPONSE), "displayName", "bob");
+    assertNotNull(bob);
+    assertEquals("2", bob.get("id").asText());
+    assertEquals("User", bob.get("meta").get("resourceType").asText());
+
+    assertNull(ScimListParser.findResource(stream(LIST_RESPONSE), "displayName", "dave"));
+    assertNull(ScimListParser.findResource(stream("{\"totalResults\":0}"), "displayName", "bob"));
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidResponseTest() throws IOException {
+    ScimListParser.parse(stream("[]"), resource -> true);
+  }
+
+  private InputStream stream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Karlsruhe Institute of Technology (KIT)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.kit.scc.test.scim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.kit.scc.IdentityHarmonizationService;
+import edu.kit.scc.scim.ScimMirror;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stub SCIM provider with at most two resources per page.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = IdentityHarmonizationService.class)
+@ActiveProfiles("test")
+public class ScimMirrorTest {
+
+  private static final int MAX_PAGE_SIZE = 2;
+
+  @Autowired
+  private ScimMirror scimMirror;
+
+  private HttpServer server;
+
+  private final List<JSONObject> users = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<JSONObject> groups = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<String> filters = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<String> attributes = Collections.synchronizedList(new ArrayList<>());
+
+  private Object usersEndpoint;
+
+  private Object groupsEndpoint;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/Users", exchange -> respond(exchange, users));
+    server.createContext("/Groups", exchange -> respond(exchange, groups));
+    server.start();
+
+    String url = "http://localhost:" + server.getAddress().getPort();
+    usersEndpoint = ReflectionTestUtils.getField(scimMirror, "usersEndpoint");
+    groupsEndpoint = ReflectionTestUtils.getField(scimMirror, "groupsEndpoint");
+    ReflectionTestUtils.setField(scimMirror, "usersEndpoint", url + "/Users");
+    ReflectionTestUtils.setField(scimMirror, "groupsEndpoint", url + "/Groups");
+  }
+
+  @After
+  public void tearDown() {
+    ReflectionTestUtils.setField(scimMirror, "usersEndpoint", usersEndpoint);
+    ReflectionTestUtils.setField(scimMirror, "groupsEndpoint", groupsEndpoint);
+    scimMirror.clear();
+    server.stop(0);
+  }
+
+  @Test
+  public void syncTest() throws Exception {
+    users.add(resource("1", "alice", "2016-01-01T10:00:00Z"));
+    users.add(resource("2", "bob", "2016-01-02T10:00:00Z"));
+    users.add(resource("3", "carol", "2016-01-03T10:00:00Z"));
+    groups.add(resource("10", "admins", "2016-01-01T10:00:00Z"));
+
+    // full import over two pages
+    assertTrue(scimMirror.sync("token").get(10, TimeUnit.SECONDS));
+    assertTrue(scimMirror.isReady());
+    assertTrue(filters.isEmpty());
+    assertEquals("1", scimMirror.getUserByUserName("alice").get("id").asText());
+    assertEquals("3", scimMirror.getUsersByDisplayName("Carol").get(0).get("id").asText());
+    assertEquals("2", scimMirror.getUserByExternalId("ext-2").get("id").asText());
+    assertEquals("Admins", scimMirror.getGroup("10").get("displayName").asText());
+
+    // only resources modified since the last sync are fetched
+    users.set(1, resource("2", "robert", "2016-01-04T10:00:00Z"));
+    users.add(resource("4", "dave", "2016-01-04T11:00:00Z"));
+    assertTrue(scimMirror.sync("token").get(10, TimeUnit.SECONDS));
+    // two pages of users, one of groups
+    assertEquals(3, filters.size());
+    assertTrue(filters.get(0).contains("2016-01-03T10:00:00Z"));
+
+    assertNull(scimMirror.getUserByUserName("bob"));
+    assertEquals("2", scimMirror.getUserByUserName("robert").get("id").asText());
+    assertEquals("4", scimMirror.getUser("4").get("id").asText());
+    assertEquals("10", scimMirror.getGroupByDisplayName("Admins").get("id").asText());
+
+    // display names are not unique
+    users.add(resource("5", "carol2", "2016-01-05T10:00:00Z").put("displayName", "Carol"));
+    assertTrue(scimMirror.sync("token").get(10, TimeUnit.SECONDS));
+    assertEquals(2, scimMirror.getUsersByDisplayName("Carol").size());
+    assertEquals(1, scimMirror.getUsersByDisplayName("Robert").size());
+    assertTrue(scimMirror.getUsersByDisplayName("Bob").isEmpty());
+  }
+
+  @Test
+  public void deletionTest() throws Exception {
+    users.add(resource("1", "alice", "2016-01-01T10:00:00Z"));
+    users.add(resource("2", "bob", "2016-01-02T10:00:00Z"));
+    groups.add(resource("10", "admins", "2016-01-01T10:00:00Z"));
+    assertTrue(scimMirror.sync("token").get(10, TimeUnit.SECONDS));
+    assertEquals("1", scimMirror.getUserByUserName("alice").get("id").asText());
+
+    // a deletion and a creation leave the number of users unchanged
+    users.remove(0);
+    users.add(resource("3", "carol", "2016-01-03T10:00:00Z"));
+    assertTrue(scimMirror.sync("token").get(10, TimeUnit.SECONDS));
+    assertEquals(2, filters.size());
+    assertTrue(attributes.contains("id"));
+    assertNull(scimMirror.getUser("1"));
+    assertNull(scimMirror.getUserByUserName("alice"));
+    assertTrue(scimMirror.getUsersByDisplayName("Alice").isEmpty());
+    assertEquals("2", scimMirror.getUserByUserName("bob").get("id").asText());
+    assertEquals("3", scimMirror.getUserByUserName("carol").get("id").asText());
+    assertEquals("Admins", scimMirror.getGroup("10").get("displayName").asText());
+  }
+
+  private void respond(HttpExchange exchange, List<JSONObject> resources) throws IOException {
+    Map<String, String> query = new HashMap<>();
+    for (String parameter : exchange.getRequestURI().getRawQuery().split("&")) {
+      String[] pair = parameter.split("=", 2);
+      query.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+    }
+    int startIndex = Integer.parseInt(query.get("startIndex"));
+    int count = Math.min(Integer.parseInt(query.get("count")), MAX_PAGE_SIZE);
+
+    if (query.containsKey("attributes")) {
+      attributes.add(query.get("attributes"));
+    }
+    List<JSONObject> matching = new ArrayList<>(resources);
+    String filter = query.get("filter");
+    if (filter != null) {
+      filters.add(filter);
+      // meta.lastModified ge "<time>"
+      OffsetDateTime since = OffsetDateTime.parse(filter.replaceAll(".*\"(.*)\"", "$1"));
+      matching.removeIf(resource -> OffsetDateTime
+          .parse(resource.getJSONObject("meta").getString("lastModified")).isBefore(since));
+    }
+    JSONArray page = new JSONArray();
+    for (int i = startIndex - 1; i < startIndex - 1 + count && i < matching.size(); i++) {
+      page.put(matching.get(i));
+    }
+    JSONObject list = new JSONObject();
+    list.put("totalResults", matching.size());
+    list.put("startIndex", startIndex);
+    list.put("itemsPerPage", page.length());
+    list.put("Resources", page);
+
+    byte[] body = list.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  private JSONObject resource(String id, String name, String lastModified) {
+    JSONObject resource = new JSONObject();
+    resource.put("id", id);
+    resource.put("userName", name);
+    resource.put("displayName", Character.toUpperCase(name.charAt(0)) + name.substring(1));
+    resource.put("externalId", "ext-" + id);
+    resource.put("meta", new JSONObject().put("lastModified", lastModified));
+    return resource;
+  }
+}